@@ -0,0 +1,153 @@
+package de.slowpoke.mbtilesmap;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads one {@link MBTiles} from several threads, with write-ahead logging
+ * while a write transaction is open and through a pool of read-only
+ * connections.
+ *
+ * @author Brian
+ */
+@RunWith(AndroidJUnit4.class)
+public class MBTilesConcurrencyTest {
+
+    private final static String NAME = "concurrency";
+    private final static int ZOOM = 5;
+    private final static int TILE_SIZE = 2 * 1024;
+    private final static int THREADS = 4;
+    private final static long TIMEOUT_SECONDS = 30;
+
+    private MBTilesMap map;
+    private File file;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        this.map = new MBTilesMap(InstrumentationRegistry.getTargetContext());
+        final MBTiles tiles = MBTilesTestArchives.create(this.map, NAME, MBTilesLayout.FLAT, ZOOM, ZOOM,
+                TILE_SIZE);
+        this.file = new File(tiles.getPath());
+        this.executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+        this.map.close();
+        MBTilesTestArchives.delete(this.file);
+    }
+
+    @Test
+    public void readsDontWaitForOpenTransaction() throws Exception {
+        final MBTiles tiles = this.map.acquire(NAME);
+        final CountDownLatch inTransaction = new CountDownLatch(1);
+        final CountDownLatch readsDone = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        final Thread writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final MBTilesWriter writer = tiles.openWriter(Integer.MAX_VALUE);
+                    writer.setTileBytes(MBTilesTestArchives.data(0, 0, ZOOM + 1, TILE_SIZE), 0, 0, ZOOM + 1);
+                    inTransaction.countDown();
+                    readsDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    writer.close();
+                } catch (Throwable t) {
+                    error.set(t);
+                    inTransaction.countDown();
+                }
+            }
+        });
+        writerThread.start();
+
+        try {
+            assertTrue(inTransaction.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            readAll(tiles);
+            // the uncommitted tile is not visible to the readers
+            assertNull(this.executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return tiles.getTileBytes(0, 0, ZOOM + 1);
+                }
+            }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        } finally {
+            readsDone.countDown();
+            writerThread.join();
+            this.map.release(NAME);
+        }
+
+        assertNull(error.get());
+        assertNotNull(tiles.getTileBytes(0, 0, ZOOM + 1));
+    }
+
+    @Test
+    public void readerPool() throws Exception {
+        this.map.remove(NAME);
+        final MBTiles tiles = this.map.openReadOnly(NAME, this.file, MBTilesVersion.VERSION_1_1, THREADS,
+                MBTilesTuning.READ_ONLY);
+        assertNotNull(tiles);
+
+        try {
+            readAll(tiles);
+        } finally {
+            this.map.release(tiles);
+        }
+    }
+
+    /**
+     * Read and check every tile from all threads at once.
+     */
+    private void readAll(final MBTiles tiles) throws Exception {
+        final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int offset = t;
+            results.add(this.executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    final int n = 1 << ZOOM;
+                    final byte[] buffer = new byte[TILE_SIZE];
+                    int count = 0;
+                    for (int i = 0; i < n * n; i++) {
+                        // every thread starts somewhere else
+                        final int j = (i + offset * n * n / THREADS) % (n * n);
+                        final int x = j / n, y = j % n;
+                        assertEquals(TILE_SIZE, tiles.getTileBytes(x, y, ZOOM, buffer, 0));
+                        assertArrayEquals(MBTilesTestArchives.data(x, y, ZOOM, TILE_SIZE), buffer);
+                        count++;
+                    }
+                    return count;
+                }
+            }));
+        }
+
+        for (Future<Integer> result : results) {
+            assertEquals((1 << ZOOM) * (1 << ZOOM), result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).intValue());
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package de.slowpoke.mbtilesmap;
+
+import android.graphics.Bitmap;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that tiles are decoded into pooled bitmaps and with the decode
+ * options of the {@link MBTiles}.
+ *
+ * @author Brian
+ */
+@RunWith(AndroidJUnit4.class)
+public class MBTilesDecoderTest {
+
+    private final static String NAME = "decoder";
+    private final static int ZOOM = 2;
+    private final static int TILE_BYTES = 256 * 256 * 4;
+
+    private MBTilesMap map;
+    private MBTiles tiles;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        this.map = new MBTilesMap(InstrumentationRegistry.getTargetContext());
+        this.file = new File(MBTilesTestArchives.create(this.map, NAME, MBTilesLayout.FLAT, ZOOM, ZOOM, 0).getPath());
+        this.tiles = this.map.acquire(NAME);
+    }
+
+    @After
+    public void tearDown() {
+        this.map.release(NAME);
+        this.map.close();
+        MBTilesTestArchives.delete(this.file);
+    }
+
+    @Test
+    public void decodesIntoPooledBitmap() {
+        final MBTilesBitmapPool pool = new MBTilesBitmapPool(4 * TILE_BYTES);
+        this.tiles.setBitmapPool(pool);
+
+        final Bitmap first = this.tiles.getTile(0, 0, ZOOM);
+        assertNotNull(first);
+        assertTrue(first.isMutable());
+        assertEquals(MBTilesTestArchives.color(0, 0, ZOOM), first.getPixel(128, 128));
+        assertTrue(this.tiles.recycleTile(first));
+        assertEquals(TILE_BYTES, pool.getByteCount());
+
+        final Bitmap second = this.tiles.getTile(1, 2, ZOOM);
+        assertSame(first, second);
+        assertEquals(MBTilesTestArchives.color(1, 2, ZOOM), second.getPixel(128, 128));
+        assertEquals(1, pool.getHitCount());
+        assertEquals(0, pool.getByteCount());
+
+        // the pool is empty again, a new bitmap is allocated
+        final Bitmap third = this.tiles.getTile(2, 1, ZOOM);
+        assertNotSame(second, third);
+        assertEquals(MBTilesTestArchives.color(2, 1, ZOOM), third.getPixel(128, 128));
+        assertEquals(2, pool.getMissCount());
+    }
+
+    @Test
+    public void decodeOptions() {
+        final MBTilesBitmapPool pool = new MBTilesBitmapPool(4 * TILE_BYTES);
+        this.tiles.setBitmapPool(pool);
+        this.tiles.setDecodeOptions(Bitmap.Config.RGB_565, 2);
+
+        final Bitmap first = this.tiles.getTile(0, 0, ZOOM);
+        assertEquals(128, first.getWidth());
+        assertEquals(128, first.getHeight());
+        assertEquals(Bitmap.Config.RGB_565, first.getConfig());
+        assertTrue(this.tiles.recycleTile(first));
+
+        // a pooled bitmap of another config is not used
+        this.tiles.setDecodeOptions(Bitmap.Config.ARGB_8888, 1);
+        final Bitmap second = this.tiles.getTile(1, 1, ZOOM);
+        assertNotSame(first, second);
+        assertEquals(256, second.getWidth());
+        assertEquals(Bitmap.Config.ARGB_8888, second.getConfig());
+    }
+
+    @Test
+    public void poolIsBounded() {
+        final MBTilesBitmapPool pool = new MBTilesBitmapPool(TILE_BYTES);
+
+        assertTrue(pool.put(Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888)));
+        assertFalse(pool.put(Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888)));
+        assertEquals(TILE_BYTES, pool.getByteCount());
+
+        assertNotNull(pool.get(256, 256, Bitmap.Config.ARGB_8888));
+        assertEquals(null, pool.get(256, 256, Bitmap.Config.ARGB_8888));
+        assertEquals(0, pool.getByteCount());
+    }
+
+    @Test
+    public void poolIsKeyedBySizeAndConfig() {
+        final MBTilesBitmapPool pool = new MBTilesBitmapPool(16 * TILE_BYTES);
+        final Bitmap large = Bitmap.createBitmap(512, 512, Bitmap.Config.ARGB_8888);
+        final Bitmap opaque = Bitmap.createBitmap(256, 256, Bitmap.Config.RGB_565);
+        assertTrue(pool.put(large));
+        assertTrue(pool.put(opaque));
+
+        assertEquals(null, pool.get(256, 256, Bitmap.Config.ARGB_8888));
+        assertSame(opaque, pool.get(256, 256, Bitmap.Config.RGB_565));
+        assertSame(large, pool.get(512, 512, Bitmap.Config.ARGB_8888));
+        assertEquals(0, pool.getByteCount());
+
+        // immutable bitmaps can't be decoded into
+        assertFalse(pool.put(Bitmap.createBitmap(new int[256 * 256], 256, 256, Bitmap.Config.ARGB_8888)));
+    }
+
+    @Test
+    public void withoutPoolNothingIsRecycled() {
+        final Bitmap tile = this.tiles.getTile(0, 0, ZOOM);
+        assertNotNull(tile);
+        assertFalse(this.tiles.recycleTile(tile));
+    }
+
+}
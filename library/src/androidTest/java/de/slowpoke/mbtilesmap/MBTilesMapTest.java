@@ -0,0 +1,153 @@
+package de.slowpoke.mbtilesmap;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link MBTilesMap} doesn't close acquired archives.
+ *
+ * @author Brian
+ */
+@RunWith(AndroidJUnit4.class)
+public class MBTilesMapTest {
+
+    private MBTilesMap map;
+    private File first;
+    private File second;
+
+    @Before
+    public void setUp() {
+        this.map = new MBTilesMap(InstrumentationRegistry.getTargetContext());
+        this.first = new File(MBTilesTestArchives.create(this.map, "first", MBTilesLayout.FLAT, 0, 2, 64).getPath());
+        this.second = new File(MBTilesTestArchives.create(this.map, "second", MBTilesLayout.FLAT, 0, 2, 64).getPath());
+    }
+
+    @After
+    public void tearDown() {
+        this.map.close();
+        MBTilesTestArchives.delete(this.first);
+        MBTilesTestArchives.delete(this.second);
+    }
+
+    @Test
+    public void removeWhileAcquired() throws Exception {
+        final MBTiles tiles = this.map.acquire("first");
+        assertSame(tiles, this.map.remove("first"));
+        assertNotNull(tiles.getTileBytes(0, 0, 0));
+
+        this.map.release("first");
+        assertClosed(tiles);
+    }
+
+    @Test
+    public void replaceWhileAcquired() throws Exception {
+        final MBTiles tiles = this.map.acquire("first");
+        final MBTiles replaced = this.map.open("first", this.second, MBTilesVersion.VERSION_1_1);
+        assertNotSame(tiles, replaced);
+        assertNotNull(tiles.getTileBytes(0, 0, 0));
+
+        // a second reference to the new archive
+        assertSame(replaced, this.map.acquire("first"));
+        this.map.release(tiles);
+        assertClosed(tiles);
+        assertTrue(this.map.isOpen("first"));
+        this.map.release(replaced);
+        this.map.release(replaced);
+    }
+
+    @Test
+    public void maxOpenKeepsAcquired() throws Exception {
+        final MBTiles tiles = this.map.acquire("first");
+        this.map.setMaxOpen(1);
+        assertNotNull(this.map.acquire("second"));
+
+        assertTrue(this.map.isOpen("first"));
+        assertNotNull(tiles.getTileBytes(0, 0, 0));
+
+        this.map.release("first");
+        this.map.setMaxOpen(1);
+        assertFalse(this.map.isOpen("first"));
+        this.map.release("second");
+    }
+
+    @Test
+    public void openedArchiveIsAcquired() throws Exception {
+        this.map.remove("first");
+        final MBTiles tiles = this.map.open("first", this.first, MBTilesVersion.VERSION_1_1);
+        this.map.setMaxOpen(1);
+        assertNotNull(this.map.acquire("second"));
+        assertNotNull(tiles.getTileBytes(0, 0, 0));
+
+        this.map.remove("first");
+        assertNotNull(tiles.getTileBytes(0, 0, 0));
+        this.map.release(tiles);
+        assertClosed(tiles);
+        this.map.release("second");
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void getKeepsOpenUntilRemoved() throws Exception {
+        final MBTiles tiles = this.map.get("first");
+        assertNotNull(tiles);
+        assertSame(tiles, this.map.get("first"));
+
+        this.map.setMaxOpen(1);
+        assertNotNull(this.map.acquire("second"));
+        assertTrue(this.map.isOpen("first"));
+        this.map.release("second");
+
+        this.map.remove("first");
+        assertClosed(tiles);
+    }
+
+    @Test
+    public void validationCacheHitsAfterReopen() throws Exception {
+        final File cacheFile = MBTilesTestArchives.file("validation.cache");
+        try {
+            final MBTilesValidationCache cache = new MBTilesValidationCache(cacheFile);
+            this.map.setValidationCache(cache, false);
+            this.map.remove("first");
+
+            // validated, switched to write-ahead logging and written to
+            MBTiles tiles = this.map.open("first", this.first, MBTilesVersion.VERSION_1_1);
+            assertNotNull(cache.get(this.first));
+            assertTrue(tiles.setTileBytes(MBTilesTestArchives.data(0, 0, 3, 64), 0, 0, 3));
+            this.map.release(tiles);
+            this.map.remove("first");
+            assertNotNull("closing outdated the entry", cache.get(this.first));
+
+            // opened from the cache
+            tiles = this.map.open("first", this.first, MBTilesVersion.VERSION_1_1);
+            assertNotNull(tiles.getTileBytes(0, 0, 3));
+            this.map.release(tiles);
+            this.map.remove("first");
+            assertNotNull(new MBTilesValidationCache(cacheFile).get(this.first));
+        } finally {
+            cacheFile.delete();
+        }
+    }
+
+    private static void assertClosed(MBTiles tiles) {
+        try {
+            tiles.getTileBytes(0, 0, 0);
+            fail("Archive is still open");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+}
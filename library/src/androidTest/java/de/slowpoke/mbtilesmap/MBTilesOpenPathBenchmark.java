@@ -0,0 +1,123 @@
+package de.slowpoke.mbtilesmap;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the read latency of an archive opened with
+ * {@link MBTilesMap#open(String, File, MBTilesVersion)} with one opened by
+ * {@link MBTilesMap#openReadOnly(String, File, MBTilesVersion, int, MBTilesTuning)}
+ * and {@link MBTilesTuning#READ_ONLY}. Cold is the first pass over random
+ * tiles right after the archive has been opened, with the page cache of
+ * SQLite still empty; warm is a second pass over the same tiles. The page
+ * cache of the system can't be dropped without root, so it is warm for both.
+ * The median time per tile is logged with the tag
+ * <code>MBTilesBenchmark</code>.
+ *
+ * @author Brian
+ */
+@RunWith(AndroidJUnit4.class)
+public class MBTilesOpenPathBenchmark {
+
+    private final static String TAG = "MBTilesBenchmark";
+    private final static String NAME = "openpath";
+    private final static int ZOOM = 6;
+    private final static int TILE_SIZE = 8 * 1024;
+    private final static int READS = 1000;
+    private final static int ROUNDS = 5;
+
+    private MBTilesMap map;
+    private File file;
+
+    @Before
+    public void setUp() {
+        this.map = new MBTilesMap(InstrumentationRegistry.getTargetContext());
+        final MBTiles tiles = MBTilesTestArchives.create(this.map, NAME, MBTilesLayout.FLAT, ZOOM, ZOOM,
+                TILE_SIZE);
+        this.file = new File(tiles.getPath());
+        this.map.remove(NAME);
+    }
+
+    @After
+    public void tearDown() {
+        this.map.close();
+        MBTilesTestArchives.delete(this.file);
+    }
+
+    @Test
+    public void readWriteOpen() throws Exception {
+        benchmark("read-write", null);
+    }
+
+    @Test
+    public void readOnlyOpen() throws Exception {
+        benchmark("read-only " + MBTilesTuning.READ_ONLY, MBTilesTuning.READ_ONLY);
+    }
+
+    /**
+     * @param tuning the tuning to open the archive read-only with or
+     *               <code>null</code> to open it with the normal path
+     */
+    private void benchmark(String name, MBTilesTuning tuning) throws Exception {
+        final long[] cold = new long[ROUNDS];
+        final long[] warm = new long[ROUNDS];
+        final byte[] buffer = new byte[TILE_SIZE];
+
+        // once to warm up the code paths
+        read(open(tuning), buffer, 0);
+        for (int i = 0; i < ROUNDS; i++) {
+            final MBTiles tiles = open(tuning);
+            cold[i] = read(tiles, buffer, i + 1);
+            warm[i] = read(tiles, buffer, i + 1);
+        }
+        this.map.remove(NAME);
+
+        Log.i(TAG, name + ": cold " + median(cold) / READS + " ns, warm " + median(warm) / READS
+                + " ns per tile");
+    }
+
+    /**
+     * Open the archive again, which closes the previous instance.
+     */
+    private MBTiles open(MBTilesTuning tuning) throws Exception {
+        final MBTiles tiles = (tuning == null)
+                ? this.map.open(NAME, this.file, MBTilesVersion.VERSION_1_1)
+                : this.map.openReadOnly(NAME, this.file, MBTilesVersion.VERSION_1_1,
+                MBTilesMap.DEFAULT_READ_CONNECTIONS, tuning);
+        this.map.release(tiles);
+        return tiles;
+    }
+
+    /**
+     * @return the elapsed nanoseconds
+     */
+    private static long read(MBTiles tiles, byte[] buffer, long seed) {
+        final Random random = new Random(seed);
+        final int n = 1 << ZOOM;
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            assertEquals(TILE_SIZE, tiles.getTileBytes(random.nextInt(n), random.nextInt(n), ZOOM, buffer, 0));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long median(long[] values) {
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+}
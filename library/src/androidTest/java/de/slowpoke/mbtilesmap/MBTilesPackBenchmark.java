@@ -0,0 +1,121 @@
+package de.slowpoke.mbtilesmap;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares reading random tiles from a {@link MBTilesPack} with reading the
+ * same tiles from the {@link MBTiles} it has been exported from, both with
+ * {@link MBTiles#getTileBytes(int, int, int, byte[], int)} into one buffer.
+ * The median time per tile of both and their ratio are logged with the tag
+ * <code>MBTilesBenchmark</code>; neither is asserted to be faster.
+ *
+ * @author Brian
+ */
+@RunWith(AndroidJUnit4.class)
+public class MBTilesPackBenchmark {
+
+    private final static String TAG = "MBTilesBenchmark";
+    private final static String NAME = "packbench";
+    private final static int ZOOM = 6;
+    private final static int WARMUP = 500;
+    private final static int READS = 5000;
+    private final static int ROUNDS = 5;
+
+    private MBTilesMap map;
+    private File file;
+    private File packFile;
+
+    @Before
+    public void setUp() {
+        this.map = new MBTilesMap(InstrumentationRegistry.getTargetContext());
+        this.packFile = MBTilesTestArchives.file(NAME + ".pack");
+    }
+
+    @After
+    public void tearDown() {
+        this.map.close();
+        if (this.file != null) {
+            MBTilesTestArchives.delete(this.file);
+        }
+        this.packFile.delete();
+    }
+
+    @Test
+    public void smallTiles() throws Exception {
+        benchmark("small", 4 * 1024);
+    }
+
+    @Test
+    public void largeTiles() throws Exception {
+        benchmark("large", 48 * 1024);
+    }
+
+    private void benchmark(String name, int tileSize) throws Exception {
+        final MBTiles tiles = MBTilesTestArchives.create(this.map, NAME, MBTilesLayout.FLAT, ZOOM, ZOOM,
+                tileSize);
+        this.file = new File(tiles.getPath());
+        tiles.exportPack(this.packFile);
+
+        final MBTilesPack pack = new MBTilesPack(this.packFile);
+        try {
+            final byte[] buffer = new byte[tileSize];
+            final long[] sqlite = new long[ROUNDS];
+            final long[] mapped = new long[ROUNDS];
+
+            // the same sequence of tiles for both
+            read(tiles, null, buffer, WARMUP, 0);
+            read(null, pack, buffer, WARMUP, 0);
+            for (int i = 0; i < ROUNDS; i++) {
+                sqlite[i] = read(tiles, null, buffer, READS, i + 1);
+                mapped[i] = read(null, pack, buffer, READS, i + 1);
+            }
+
+            final long s = median(sqlite), p = median(mapped);
+            Log.i(TAG, name + " tiles of " + tileSize + " bytes: sqlite " + s / READS + " ns, pack " + p / READS
+                    + " ns per tile; pack/sqlite time " + String.format("%.2f", (double) p / s));
+        } finally {
+            pack.close();
+        }
+    }
+
+    /**
+     * @param tiles the archive to read or <code>null</code> to read the pack
+     * @return the elapsed nanoseconds
+     */
+    private static long read(MBTiles tiles, MBTilesPack pack, byte[] buffer, int count, long seed) {
+        final Random random = new Random(seed);
+        final int n = 1 << ZOOM;
+        long bytes = 0;
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            final int x = random.nextInt(n), y = random.nextInt(n);
+            bytes += (tiles != null) ? tiles.getTileBytes(x, y, ZOOM, buffer, 0)
+                    : pack.getTileBytes(x, y, ZOOM, buffer, 0);
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        assertEquals((long) count * buffer.length, bytes);
+        return elapsed;
+    }
+
+    private static long median(long[] values) {
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+}
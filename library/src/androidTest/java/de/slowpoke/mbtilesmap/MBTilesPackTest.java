@@ -0,0 +1,139 @@
+package de.slowpoke.mbtilesmap;
+
+import android.graphics.Bitmap;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import de.slowpoke.mbtilesmap.MBTiles.TileCallback;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes an archive to a {@link MBTilesPack} and reads every tile back
+ * through the directory.
+ *
+ * @author Brian
+ */
+@RunWith(AndroidJUnit4.class)
+public class MBTilesPackTest {
+
+    private final static String NAME = "pack";
+    private final static int MAX_ZOOM = 4;
+    private final static int TILE_SIZE = 300;
+
+    private MBTilesMap map;
+    private File file;
+    private File packFile;
+    private File copyFile;
+    private MBTilesPack pack;
+
+    @Before
+    public void setUp() throws Exception {
+        this.map = new MBTilesMap(InstrumentationRegistry.getTargetContext());
+        final MBTiles tiles = MBTilesTestArchives.create(this.map, NAME, MBTilesLayout.FLAT, 0, MAX_ZOOM,
+                TILE_SIZE);
+        this.file = new File(tiles.getPath());
+        this.packFile = MBTilesTestArchives.file(NAME + ".pack");
+        this.copyFile = MBTilesTestArchives.file(NAME + "-copy.mbtiles");
+
+        // more tiles per zoom level than fit into one page
+        assertEquals(tileCount(), this.map.acquire(NAME).exportPack(this.packFile));
+        this.map.release(NAME);
+        this.pack = new MBTilesPack(this.packFile);
+    }
+
+    @After
+    public void tearDown() {
+        this.pack.close();
+        this.map.close();
+        MBTilesTestArchives.delete(this.file);
+        MBTilesTestArchives.delete(this.copyFile);
+        this.packFile.delete();
+    }
+
+    @Test
+    public void everyTileIsFound() {
+        assertEquals(tileCount(), this.pack.getTileCount());
+        assertEquals(NAME, this.pack.getMetadata().name);
+
+        final byte[] buffer = new byte[TILE_SIZE];
+        for (int z = 0; z <= MAX_ZOOM; z++) {
+            for (int x = 0; x < (1 << z); x++) {
+                for (int y = 0; y < (1 << z); y++) {
+                    final byte[] expected = MBTilesTestArchives.data(x, y, z, TILE_SIZE);
+                    assertArrayEquals(expected, this.pack.getTileBytes(x, y, z));
+                    assertEquals(TILE_SIZE, this.pack.getTileBytes(x, y, z, buffer, 0));
+                    assertArrayEquals(expected, buffer);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void missingTiles() {
+        assertNull(this.pack.getTileBytes(0, 0, MAX_ZOOM + 1));
+        assertNull(this.pack.getTileBytes(1 << MAX_ZOOM, 0, MAX_ZOOM));
+        assertNull(this.pack.getTileBytes(-1, 0, MAX_ZOOM));
+        assertEquals(-1, this.pack.getTileBytes(0, 0, -1, new byte[TILE_SIZE], 0));
+
+        // would have the key of tile 1/0 at the same zoom level
+        assertNotNull(this.pack.getTileBytes(1, 0, MAX_ZOOM));
+        assertNull(this.pack.getTileBytes(0, 1 << 29, MAX_ZOOM));
+    }
+
+    @Test
+    public void getTilesIsClipped() {
+        assertEquals(16, countTiles(MAX_ZOOM, 2, 3, 5, 6));
+        assertEquals(1 << (2 * MAX_ZOOM), countTiles(MAX_ZOOM, Integer.MIN_VALUE, -1, Integer.MAX_VALUE,
+                Integer.MAX_VALUE));
+        assertEquals(0, countTiles(MAX_ZOOM, 1 << MAX_ZOOM, 0, Integer.MAX_VALUE, 0));
+        assertEquals(0, countTiles(-1, 0, 0, 0, 0));
+    }
+
+    @Test
+    public void copyTo() throws Exception {
+        final MBTiles copy = this.map.create("copy", this.copyFile, MBTilesVersion.VERSION_1_1, NAME,
+                MBTilesMetadata.LayerType.BASELAYER, MBTilesMetadata.TileFormat.PNG, MBTilesTestArchives.WORLD);
+        try {
+            assertEquals(tileCount(), this.pack.copyTo(copy, 100));
+            assertArrayEquals(MBTilesTestArchives.data(3, 5, MAX_ZOOM, TILE_SIZE),
+                    copy.getTileBytes(3, 5, MAX_ZOOM));
+        } finally {
+            this.map.release(copy);
+        }
+    }
+
+    private int countTiles(int z, int minX, int minY, int maxX, int maxY) {
+        final int[] seen = new int[1];
+        final int handed = this.pack.getTiles(z, minX, minY, maxX, maxY, new TileCallback() {
+            @Override
+            public boolean onTile(Bitmap tile, int x, int y, int z) {
+                assertTrue(x >= 0 && y >= 0 && x < (1 << z) && y < (1 << z));
+                seen[0]++;
+                return true;
+            }
+        });
+        assertEquals(handed, seen[0]);
+        return handed;
+    }
+
+    private static int tileCount() {
+        int count = 0;
+        for (int z = 0; z <= MAX_ZOOM; z++) {
+            count += 1 << (2 * z);
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,144 @@
+package de.slowpoke.mbtilesmap;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Reads random tiles of one {@link MBTiles} from 1, 2, 4 and more threads at
+ * once, through a database in write-ahead logging mode and through a pool of
+ * read-only connections. The throughput in tiles per second is logged with
+ * the tag <code>MBTilesBenchmark</code> for every number of threads; whether
+ * it scales depends on the device, so it is not asserted.
+ *
+ * @author Brian
+ */
+@RunWith(AndroidJUnit4.class)
+public class MBTilesReadScalingBenchmark {
+
+    private final static String TAG = "MBTilesBenchmark";
+    private final static String NAME = "scaling";
+    private final static int ZOOM = 6;
+    private final static int TILE_SIZE = 8 * 1024;
+    private final static int WARMUP = 200;
+    private final static int READS_PER_THREAD = 2000;
+    private final static long TIMEOUT_SECONDS = 120;
+
+    private final static int MAX_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    private MBTilesMap map;
+    private File file;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        this.map = new MBTilesMap(InstrumentationRegistry.getTargetContext());
+        final MBTiles tiles = MBTilesTestArchives.create(this.map, NAME, MBTilesLayout.FLAT, ZOOM, ZOOM,
+                TILE_SIZE);
+        this.file = new File(tiles.getPath());
+        this.executor = Executors.newFixedThreadPool(MAX_THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+        this.map.close();
+        MBTilesTestArchives.delete(this.file);
+    }
+
+    @Test
+    public void writeAheadLog() throws Exception {
+        final MBTiles tiles = this.map.acquire(NAME);
+        try {
+            scale("wal", tiles);
+        } finally {
+            this.map.release(tiles);
+        }
+    }
+
+    @Test
+    public void readerPool() throws Exception {
+        this.map.remove(NAME);
+        final MBTiles tiles = this.map.openReadOnly(NAME, this.file, MBTilesVersion.VERSION_1_1, MAX_THREADS,
+                MBTilesTuning.READ_ONLY);
+        try {
+            scale("pool", tiles);
+        } finally {
+            this.map.release(tiles);
+        }
+    }
+
+    private void scale(String name, MBTiles tiles) throws Exception {
+        run(tiles, MAX_THREADS, WARMUP);
+
+        for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+            report(name, tiles, threads);
+        }
+        if (Integer.bitCount(MAX_THREADS) != 1) {
+            report(name, tiles, MAX_THREADS);
+        }
+    }
+
+    private void report(String name, MBTiles tiles, int threads) throws Exception {
+        final long elapsed = run(tiles, threads, READS_PER_THREAD);
+        final long reads = (long) threads * READS_PER_THREAD;
+        Log.i(TAG, name + " with " + threads + " threads: " + reads * TimeUnit.SECONDS.toNanos(1) / elapsed
+                + " tiles/s");
+    }
+
+    /**
+     * Start all threads at once and wait for the last one.
+     *
+     * @return the elapsed nanoseconds
+     */
+    private long run(final MBTiles tiles, final int threads, final int reads) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            results.add(this.executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    final Random random = new Random(seed);
+                    final int n = 1 << ZOOM;
+                    final byte[] buffer = new byte[TILE_SIZE];
+                    int count = 0;
+
+                    start.await();
+                    for (int i = 0; i < reads; i++) {
+                        if (tiles.getTileBytes(random.nextInt(n), random.nextInt(n), ZOOM, buffer, 0) == TILE_SIZE) {
+                            count++;
+                        }
+                    }
+                    return count;
+                }
+            }));
+        }
+
+        final long begin = System.nanoTime();
+        start.countDown();
+        for (Future<Integer> result : results) {
+            assertEquals(reads, result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).intValue());
+        }
+        return System.nanoTime() - begin;
+    }
+
+}
@@ -0,0 +1,253 @@
+package de.slowpoke.mbtilesmap;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.slowpoke.mbtilesmap.MBTilesMetadata.LayerType;
+import de.slowpoke.mbtilesmap.MBTilesMetadata.TileFormat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Seeds an empty archive from a source in this process, stops the seeder
+ * half way with {@link MBTilesSeeder#cancel()} or an interrupt and lets
+ * another seeder continue from the checkpoint.
+ *
+ * @author Brian
+ */
+@RunWith(AndroidJUnit4.class)
+public class MBTilesSeederTest implements IMBTiles {
+
+    private final static String NAME = "seed";
+    private final static int MAX_ZOOM = 4;
+    private final static int TILE_SIZE = 100;
+    private final static int BATCH_SIZE = 20;
+    private final static long TIMEOUT_MILLIS = 30000;
+
+    /**
+     * Every tile of the zoom levels 0 to 4.
+     */
+    private final static int TOTAL = 1 + 4 + 16 + 64 + 256;
+
+    /**
+     * The job of the checkpoint, the zoom range and no bounds.
+     */
+    private final static String JOB = "0;" + MAX_ZOOM + ";;";
+
+    private MBTilesMap map;
+    private MBTiles tiles;
+    private File file;
+
+    @Before
+    public void setUp() {
+        this.map = new MBTilesMap(InstrumentationRegistry.getTargetContext());
+        this.file = MBTilesTestArchives.file(NAME + ".mbtiles");
+        this.tiles = this.map.create(NAME, this.file, MBTilesVersion.VERSION_1_1, NAME, LayerType.BASELAYER,
+                TileFormat.PNG, null);
+    }
+
+    @After
+    public void tearDown() {
+        this.map.release(this.tiles);
+        this.map.close();
+        MBTilesTestArchives.delete(this.file);
+    }
+
+    @Test
+    public void resumesAfterCancel() throws Exception {
+        // cancelled while the first tile of zoom level 3 is fetched
+        final StubSource source = new StubSource(3, 0, 0, false);
+        final MBTilesSeeder first = seeder(source);
+        source.seeder = first;
+        first.run();
+
+        // the tiles being fetched are written, so nothing is lost
+        final long written = first.getWrittenCount();
+        assertTrue(written > 0 && written < TOTAL);
+        assertEquals(written, first.getProcessedCount());
+        assertEquals(0, first.getSkippedCount());
+        assertEquals(written, rowCount());
+        assertTrue(this.tiles.readMetadata(MBTilesSeeder.KEY_CHECKPOINT).startsWith(JOB));
+
+        final MBTilesSeeder second = seeder(source);
+        second.run();
+
+        assertEquals(0, second.getSkippedCount());
+        assertEquals(TOTAL - written, second.getWrittenCount());
+        assertNull(this.tiles.readMetadata(MBTilesSeeder.KEY_CHECKPOINT));
+        assertComplete();
+        // every tile has been fetched by exactly one of the seeders
+        assertEquals(TOTAL, source.fetches.size());
+        for (Integer fetches : source.fetches.values()) {
+            assertEquals(1, fetches.intValue());
+        }
+    }
+
+    @Test
+    public void resumesAfterInterrupt() throws Exception {
+        // blocks on the first tile of zoom level 4, the 86th
+        final StubSource source = new StubSource(4, 0, 0, true);
+        final MBTilesSeeder first = seeder(source);
+        final AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    first.run();
+                } catch (Throwable e) {
+                    thrown.set(e);
+                }
+            }
+        });
+        thread.start();
+
+        assertTrue(source.blocked.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        // wait until the tiles before it are written, the last batch is open
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (first.getProcessedCount() < 85 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(85, first.getProcessedCount());
+        thread.interrupt();
+        thread.join(TIMEOUT_MILLIS);
+        assertTrue(thrown.get() instanceof InterruptedException);
+
+        // 4 batches of 20 tiles are committed, the 80th tile is the 59th of zoom level 3
+        assertEquals(80, rowCount());
+        assertEquals(JOB + "3,7,2", this.tiles.readMetadata(MBTilesSeeder.KEY_CHECKPOINT));
+
+        source.blocking = false;
+        final MBTilesSeeder second = seeder(source);
+        second.run();
+
+        assertEquals(0, second.getSkippedCount());
+        assertEquals(TOTAL - 80, second.getWrittenCount());
+        assertNull(this.tiles.readMetadata(MBTilesSeeder.KEY_CHECKPOINT));
+        assertComplete();
+    }
+
+    @Test
+    public void skipsExistingTiles() throws Exception {
+        final StubSource source = new StubSource(-1, 0, 0, false);
+        seeder(source).run();
+        source.fetches.clear();
+
+        final MBTilesSeeder again = seeder(source);
+        assertEquals(0, again.run());
+        assertEquals(TOTAL, again.getSkippedCount());
+        assertEquals(TOTAL, again.getProcessedCount());
+        assertTrue(source.fetches.isEmpty());
+        assertComplete();
+    }
+
+    private MBTilesSeeder seeder(ITileSource source) {
+        final MBTilesSeeder seeder = new MBTilesSeeder(this.tiles, source, null, 0, MAX_ZOOM);
+        seeder.setThreads(2);
+        seeder.setBatchSize(BATCH_SIZE);
+        return seeder;
+    }
+
+    /**
+     * Every tile is there once with its data.
+     */
+    private void assertComplete() {
+        assertEquals(TOTAL, rowCount());
+        for (int z = 0; z <= MAX_ZOOM; z++) {
+            for (int x = 0; x < (1 << z); x++) {
+                for (int y = 0; y < (1 << z); y++) {
+                    assertArrayEquals(MBTilesTestArchives.data(x, y, z, TILE_SIZE), this.tiles.getTileBytes(x, y, z));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of committed rows, read through another connection
+     */
+    private long rowCount() {
+        final SQLiteDatabase database = SQLiteDatabase.openDatabase(this.file.getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        try {
+            final Cursor c = database.rawQuery("SELECT COUNT(*) FROM " + TABLE_NAME, null);
+            try {
+                return c.moveToFirst() ? c.getLong(0) : -1;
+            } finally {
+                c.close();
+            }
+        } finally {
+            database.close();
+        }
+    }
+
+    /**
+     * Serves generated tile data and counts how often every tile is fetched.
+     * One tile either cancels the seeder or blocks until the fetching thread
+     * is interrupted.
+     */
+    private static class StubSource implements ITileSource {
+
+        final Map<Long, Integer> fetches = new HashMap<Long, Integer>();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        volatile MBTilesSeeder seeder;
+        volatile boolean blocking;
+
+        private final long stopAt;
+
+        /**
+         * @param blocking <code>true</code> to block on the tile,
+         *                 <code>false</code> to cancel the seeder
+         */
+        StubSource(int z, int x, int y, boolean blocking) {
+            this.stopAt = (z < 0) ? -1 : MBTilesTileKey.pack(x, y, z);
+            this.blocking = blocking;
+        }
+
+        @Override
+        public Bitmap getTile(int x, int y, int z) {
+            return null;
+        }
+
+        @Override
+        public byte[] getTileBytes(int x, int y, int z) {
+            final long key = MBTilesTileKey.pack(x, y, z);
+            synchronized (this.fetches) {
+                final Integer count = this.fetches.get(key);
+                this.fetches.put(key, count == null ? 1 : count + 1);
+            }
+
+            if (key == this.stopAt) {
+                if (this.blocking) {
+                    this.blocked.countDown();
+                    try {
+                        // until the seeder shuts its fetchers down
+                        new CountDownLatch(1).await();
+                    } catch (InterruptedException e) {
+                        return null;
+                    }
+                } else if (this.seeder != null) {
+                    this.seeder.cancel();
+                }
+            }
+            return MBTilesTestArchives.data(x, y, z, TILE_SIZE);
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package de.slowpoke.mbtilesmap;
+
+import android.graphics.Bitmap;
+import android.support.test.InstrumentationRegistry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Random;
+
+import de.slowpoke.mbtilesmap.MBTilesMetadata.LayerType;
+import de.slowpoke.mbtilesmap.MBTilesMetadata.TileFormat;
+
+/**
+ * Creates archives and tiles for the tests.
+ *
+ * @author Brian
+ */
+final class MBTilesTestArchives {
+
+    final static MBTilesBounds WORLD = new MBTilesBounds(-180f, -85f, 180f, 85f);
+
+    private MBTilesTestArchives() {
+    }
+
+    /**
+     * @param name
+     * @return a file in the cache directory which doesn't exist, together
+     * with its journals
+     */
+    static File file(String name) {
+        final File file = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), name);
+        delete(file);
+        return file;
+    }
+
+    /**
+     * Delete a database file and its journals.
+     */
+    static void delete(File file) {
+        file.delete();
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+        new File(file.getPath() + "-journal").delete();
+    }
+
+    /**
+     * Create an archive with every tile of the given zoom levels.
+     *
+     * @param map
+     * @param name
+     * @param layout
+     * @param minZoom
+     * @param maxZoom
+     * @param tileSize the size of the tile data in bytes, or <code>0</code>
+     *                 for small PNG tiles
+     * @return the open archive, added to the map and released again
+     */
+    static MBTiles create(MBTilesMap map, String name, MBTilesLayout layout, int minZoom, int maxZoom,
+                          int tileSize) {
+        final MBTiles tiles = map.create(name, file(name + ".mbtiles"), MBTilesVersion.VERSION_1_1, name,
+                LayerType.BASELAYER, TileFormat.PNG, WORLD, layout);
+
+        final MBTilesWriter writer = tiles.openWriter(500);
+        for (int z = minZoom; z <= maxZoom; z++) {
+            for (int x = 0; x < (1 << z); x++) {
+                for (int y = 0; y < (1 << z); y++) {
+                    writer.setTileBytes(tileSize > 0 ? data(x, y, z, tileSize) : png(color(x, y, z)), x, y, z);
+                }
+            }
+        }
+        writer.close();
+        map.release(tiles);
+        return tiles;
+    }
+
+    /**
+     * @return tile data which differs for every tile
+     */
+    static byte[] data(int x, int y, int z, int size) {
+        final byte[] data = new byte[size];
+        new Random(MBTilesTileKey.pack(x, y, z)).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * @return a color which differs for every tile of a zoom level
+     */
+    static int color(int x, int y, int z) {
+        return 0xFF000000 | ((x * 37 + z) & 0xFF) << 16 | ((y * 59) & 0xFF) << 8 | (z * 17 & 0xFF);
+    }
+
+    /**
+     * @return a 256x256 PNG filled with the color
+     */
+    static byte[] png(int color) {
+        final Bitmap bitmap = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,131 @@
+package de.slowpoke.mbtilesmap;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the sidecar of a {@link MBTilesTileIndex} is reused after the
+ * archive has been closed and opened again, and dropped once the archive has
+ * been changed behind its back.
+ *
+ * @author Brian
+ */
+@RunWith(AndroidJUnit4.class)
+public class MBTilesTileIndexTest implements IMBTiles {
+
+    private final static String NAME = "index";
+    private final static int ZOOM = 4;
+
+    private MBTilesMap map;
+    private File file;
+    private File sidecar;
+
+    @Before
+    public void setUp() {
+        this.map = new MBTilesMap(InstrumentationRegistry.getTargetContext());
+        final MBTiles tiles = MBTilesTestArchives.create(this.map, NAME, MBTilesLayout.FLAT, 0, ZOOM, 64);
+        this.file = new File(tiles.getPath());
+        this.sidecar = new File(this.file.getPath() + ".index");
+        this.sidecar.delete();
+
+        tiles.enableTileIndex(this.sidecar);
+        this.map.remove(NAME);
+    }
+
+    @After
+    public void tearDown() {
+        this.map.close();
+        this.sidecar.delete();
+        MBTilesTestArchives.delete(this.file);
+    }
+
+    @Test
+    public void sidecarReusedAfterReopen() throws Exception {
+        assertTrue(this.sidecar.isFile());
+
+        final MBTiles tiles = this.map.open(NAME, this.file, MBTilesVersion.VERSION_1_1);
+        assertNotNull("sidecar outdated by opening the archive", MBTilesTileIndex.load(this.sidecar, this.file));
+
+        final MBTilesTileIndex index = tiles.enableTileIndex(this.sidecar);
+        for (int x = 0; x < (1 << ZOOM); x++) {
+            for (int y = 0; y < (1 << ZOOM); y++) {
+                assertTrue(index.mightContain(x, y, ZOOM));
+            }
+        }
+        assertFalse(tiles.hasTile(0, 0, ZOOM + 1));
+
+        this.map.release(tiles);
+        this.map.remove(NAME);
+        assertNotNull("sidecar outdated by closing the archive", MBTilesTileIndex.load(this.sidecar, this.file));
+    }
+
+    @Test
+    public void growsWhenFull() throws Exception {
+        final MBTiles tiles = this.map.open(NAME, this.file, MBTilesVersion.VERSION_1_1);
+        final MBTilesTileIndex index = tiles.enableTileIndex(null);
+        assertFalse(index.isFull());
+
+        // more tiles than the smallest index has room for
+        final int z = ZOOM + 1;
+        final MBTilesWriter writer = tiles.openWriter(256);
+        try {
+            for (int x = 0; x < (1 << z); x++) {
+                for (int y = 0; y < (1 << z); y++) {
+                    assertTrue(writer.setTileBytes(MBTilesTestArchives.data(x, y, z, 16), x, y, z));
+                }
+            }
+        } finally {
+            writer.close();
+            this.map.release(tiles);
+        }
+
+        final MBTilesTileIndex grown = tiles.getTileIndex();
+        assertNotSame(index, grown);
+        assertFalse(grown.isFull());
+        assertTrue(grown.getByteCount() > index.getByteCount());
+        for (int x = 0; x < (1 << z); x++) {
+            for (int y = 0; y < (1 << z); y++) {
+                assertTrue(grown.mightContain(x, y, z));
+            }
+        }
+        assertTrue(grown.mightContain(0, 0, 0));
+    }
+
+    @Test
+    public void sidecarOutdatedAfterWrite() {
+        final SQLiteDatabase database = SQLiteDatabase.openDatabase(this.file.getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        try {
+            // enough tiles to grow the file, its modification time is coarse
+            final int z = ZOOM + 1;
+            for (int x = 0; x < (1 << z); x++) {
+                final ContentValues values = new ContentValues();
+                values.put(COL_ZOOM_LEVEL, z);
+                values.put(COL_TILE_COLUMN, x);
+                values.put(COL_TILE_ROW, 0);
+                values.put(COL_TILE_DATA, MBTilesTestArchives.data(x, 0, z, 16 * 1024));
+                database.insertOrThrow(TABLE_NAME, null, values);
+            }
+        } finally {
+            database.close();
+        }
+
+        assertNull(MBTilesTileIndex.load(this.sidecar, this.file));
+    }
+
+}
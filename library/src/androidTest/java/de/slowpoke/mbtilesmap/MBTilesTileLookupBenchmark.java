@@ -0,0 +1,163 @@
+package de.slowpoke.mbtilesmap;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares {@link MBTilesTileLookup}, the precompiled statement behind
+ * {@link MBTiles#getTileBytes(int, int, int, byte[], int)}, with a plain
+ * <code>rawQuery</code> per tile on the same archive. The time and the
+ * allocations per tile of both paths and their ratio are logged with the tag
+ * <code>MBTilesBenchmark</code>; neither is asserted to be faster, the
+ * numbers depend on the device and the tile size.
+ *
+ * @author Brian
+ */
+@RunWith(AndroidJUnit4.class)
+public class MBTilesTileLookupBenchmark implements IMBTiles {
+
+    private final static String TAG = "MBTilesBenchmark";
+
+    private final static String SELECT_TILE_DATA = "SELECT " + COL_TILE_DATA + " FROM " + TABLE_NAME + " WHERE "
+            + COL_ZOOM_LEVEL + "=? AND " + COL_TILE_COLUMN + "=? AND " + COL_TILE_ROW + "=?";
+
+    private final static int ZOOM = 6;
+    private final static int WARMUP = 500;
+    private final static int LOOKUPS = 5000;
+
+    private MBTilesMap map;
+    private SQLiteDatabase database;
+
+    @Before
+    public void setUp() {
+        this.map = new MBTilesMap(InstrumentationRegistry.getTargetContext());
+    }
+
+    @After
+    public void tearDown() {
+        if (this.database != null) {
+            this.database.close();
+        }
+        this.map.close();
+    }
+
+    @Test
+    public void lookupMatchesCursor() {
+        final MBTiles tiles = open("lookup", 4 * 1024);
+        final byte[] buffer = new byte[64 * 1024];
+
+        for (int x = 0; x < (1 << ZOOM); x += 7) {
+            for (int y = 0; y < (1 << ZOOM); y += 5) {
+                final int length = tiles.getTileBytes(x, y, ZOOM, buffer, 0);
+                final byte[] expected = query(x, y, ZOOM);
+                assertEquals(expected.length, length);
+                final byte[] actual = new byte[length];
+                System.arraycopy(buffer, 0, actual, 0, length);
+                assertArrayEquals(expected, actual);
+            }
+        }
+        assertEquals(-1, tiles.getTileBytes(0, 0, ZOOM + 1, buffer, 0));
+    }
+
+    @Test
+    public void smallTiles() {
+        benchmark("small", 4 * 1024);
+    }
+
+    @Test
+    public void largeTiles() {
+        benchmark("large", 48 * 1024);
+    }
+
+    private void benchmark(String name, int tileSize) {
+        final MBTiles tiles = open(name, tileSize);
+        final byte[] buffer = new byte[tileSize];
+
+        // the same sequence of tiles for both
+        run(tiles, buffer, WARMUP, 1, null);
+        run(null, buffer, WARMUP, 1, null);
+        final int[] lookupAllocs = new int[2];
+        final int[] cursorAllocs = new int[2];
+        final long lookup = run(tiles, buffer, LOOKUPS, 2, lookupAllocs);
+        final long cursor = run(null, buffer, LOOKUPS, 2, cursorAllocs);
+
+        Log.i(TAG, name + " tiles of " + tileSize + " bytes: lookup " + lookup / LOOKUPS + " ns, "
+                + perTile(lookupAllocs) + "; cursor " + cursor / LOOKUPS + " ns, " + perTile(cursorAllocs)
+                + "; lookup/cursor time " + String.format("%.2f", (double) lookup / cursor));
+    }
+
+    /**
+     * @return the allocations per tile, if the runtime counts them
+     */
+    private static String perTile(int[] allocs) {
+        if (allocs[0] == 0) {
+            return "allocations not counted";
+        }
+        return (allocs[0] / (double) LOOKUPS) + " allocations, " + allocs[1] / LOOKUPS + " bytes";
+    }
+
+    /**
+     * @param tiles  the archive to read through the lookup or
+     *               <code>null</code> to read with a cursor
+     * @param allocs receives the number and bytes of allocations of this
+     *               thread, might be <code>null</code>
+     * @return the elapsed nanoseconds
+     */
+    @SuppressWarnings("deprecation")
+    private long run(MBTiles tiles, byte[] buffer, int count, long seed, int[] allocs) {
+        final Random random = new Random(seed);
+        final int n = 1 << ZOOM;
+        long bytes = 0;
+
+        if (allocs != null) {
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            final int x = random.nextInt(n), y = random.nextInt(n);
+            bytes += (tiles != null) ? tiles.getTileBytes(x, y, ZOOM, buffer, 0) : query(x, y, ZOOM).length;
+        }
+        final long elapsed = System.nanoTime() - start;
+        if (allocs != null) {
+            Debug.stopAllocCounting();
+            allocs[0] = Debug.getThreadAllocCount();
+            allocs[1] = Debug.getThreadAllocSize();
+        }
+
+        assertEquals((long) count * buffer.length, bytes);
+        return elapsed;
+    }
+
+    private byte[] query(int x, int y, int z) {
+        final Cursor c = this.database.rawQuery(SELECT_TILE_DATA, new String[]{Integer.toString(z),
+                Integer.toString(x), Integer.toString(y)});
+        try {
+            return c.moveToFirst() ? c.getBlob(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    private MBTiles open(String name, int tileSize) {
+        final MBTiles tiles = MBTilesTestArchives.create(this.map, name, MBTilesLayout.FLAT, ZOOM, ZOOM, tileSize);
+        this.database = SQLiteDatabase.openDatabase(tiles.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        return tiles;
+    }
+
+}
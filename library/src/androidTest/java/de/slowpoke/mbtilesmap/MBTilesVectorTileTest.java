@@ -0,0 +1,311 @@
+package de.slowpoke.mbtilesmap;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import de.slowpoke.mbtilesmap.MBTilesVectorTile.Feature;
+import de.slowpoke.mbtilesmap.MBTilesVectorTile.GeometryHandler;
+import de.slowpoke.mbtilesmap.MBTilesVectorTile.Layer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reads hand-encoded vector tiles with {@link MBTilesVectorTile}.
+ *
+ * @author Brian
+ */
+@RunWith(AndroidJUnit4.class)
+public class MBTilesVectorTileTest {
+
+    private final static int CMD_MOVE_TO = 1;
+    private final static int CMD_LINE_TO = 2;
+    private final static int CMD_CLOSE_PATH = 7;
+
+    @Test
+    public void layersByName() throws Exception {
+        final MBTilesVectorTile tile = new MBTilesVectorTile(tile());
+
+        assertEquals(2, tile.getLayerCount());
+        assertArrayEquals(new String[]{"roads", "water"}, tile.getLayerNames());
+        assertSame(tile.getLayer(1), tile.getLayer("water"));
+        assertSame(tile.getLayer(0), tile.getLayer(0));
+        assertNull(tile.getLayer("buildings"));
+
+        final Layer roads = tile.getLayer("roads");
+        assertEquals(2, roads.getVersion());
+        assertEquals(512, roads.getExtent());
+        assertEquals(1, roads.getFeatureCount());
+        assertEquals(MBTilesVectorTile.DEFAULT_EXTENT, tile.getLayer("water").getExtent());
+    }
+
+    @Test
+    public void layersAreScannedLazily() throws Exception {
+        // the second layer is framed correctly, but its contents are garbage
+        final byte[] garbage = new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
+        final byte[] data = new Message()
+                .bytes(3, roads())
+                .bytes(3, new Message().string(1, "broken").raw(garbage).toByteArray())
+                .toByteArray();
+        final MBTilesVectorTile tile = new MBTilesVectorTile(data);
+
+        assertEquals(2, tile.getLayerCount());
+        assertEquals("main", tile.getLayer("roads").getFeature(0).getValue("name"));
+
+        final Layer broken = tile.getLayer(1);
+        assertEquals("broken", broken.getName());
+        try {
+            broken.getFeatureCount();
+            fail("Garbage has been scanned");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void tagValues() throws Exception {
+        final Feature feature = new MBTilesVectorTile(tile()).getLayer("roads").getFeature(0);
+
+        assertEquals(42L, feature.getId());
+        assertEquals(MBTilesVectorTile.GEOM_LINESTRING, feature.getType());
+        assertEquals(7, feature.getTagCount());
+        assertEquals("name", feature.getKey(0));
+        assertEquals("main", feature.getValue(0));
+        assertEquals(Float.valueOf(1.5f), feature.getValue("width"));
+        assertEquals(Double.valueOf(2.25), feature.getValue("length"));
+        assertEquals(Long.valueOf(-3), feature.getValue("offset"));
+        assertEquals(Long.valueOf(-7), feature.getValue("layer"));
+        assertEquals(Long.valueOf(3000000000L), feature.getValue("lanes"));
+        assertEquals(Boolean.TRUE, feature.getValue("oneway"));
+        assertNull(feature.getValue("bridge"));
+    }
+
+    @Test
+    public void geometry() throws Exception {
+        final MBTilesVectorTile tile = new MBTilesVectorTile(tile());
+
+        assertEquals("M2,3 L1,7 L6,4", geometry(tile.getLayer("roads").getFeature(0)));
+
+        final Feature lake = tile.getLayer("water").getFeature(0);
+        assertEquals(MBTilesVectorTile.GEOM_POLYGON, lake.getType());
+        assertEquals("M10,10 L20,10 L20,20 Z", geometry(lake));
+    }
+
+    @Test
+    public void gzipAndPlain() throws Exception {
+        final byte[] plain = tile();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(plain);
+        gzip.close();
+        final byte[] gzipped = out.toByteArray();
+
+        assertFalse(MBTilesVectorTile.isGzipped(plain));
+        assertTrue(MBTilesVectorTile.isGzipped(gzipped));
+
+        final MBTilesVectorTile tile = new MBTilesVectorTile(gzipped);
+        assertArrayEquals(plain, tile.getData());
+        assertSame(plain, new MBTilesVectorTile(plain).getData());
+        assertEquals("M10,10 L20,10 L20,20 Z", geometry(tile.getLayer("water").getFeature(0)));
+
+        try {
+            new MBTilesVectorTile(Arrays.copyOf(gzipped, gzipped.length / 2));
+            fail("Truncated gzip stream has been inflated");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void truncated() throws Exception {
+        final byte[] data = tile();
+
+        // cut inside the last layer
+        final MBTilesVectorTile tile = new MBTilesVectorTile(Arrays.copyOf(data, data.length - 3));
+        try {
+            tile.getLayerCount();
+            fail("Truncated layer has been located");
+        } catch (IllegalStateException expected) {
+        }
+
+        // cut inside a varint
+        final byte[] varint = new Message().varint(1, 300).toByteArray();
+        final MBTilesVectorTile cut = new MBTilesVectorTile(Arrays.copyOf(varint, varint.length - 1));
+        try {
+            cut.getLayerCount();
+            fail("Truncated varint has been read");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private static String geometry(Feature feature) {
+        final StringBuilder path = new StringBuilder();
+        feature.decodeGeometry(new GeometryHandler() {
+            @Override
+            public void moveTo(int x, int y) {
+                append("M" + x + "," + y);
+            }
+
+            @Override
+            public void lineTo(int x, int y) {
+                append("L" + x + "," + y);
+            }
+
+            @Override
+            public void closePath() {
+                append("Z");
+            }
+
+            private void append(String command) {
+                if (path.length() > 0) {
+                    path.append(' ');
+                }
+                path.append(command);
+            }
+        });
+        return path.toString();
+    }
+
+    /**
+     * @return a tile with a layer of roads and a layer of water
+     */
+    private static byte[] tile() {
+        return new Message().bytes(3, roads()).bytes(3, water()).toByteArray();
+    }
+
+    /**
+     * One line with a tag of every value type.
+     */
+    private static byte[] roads() {
+        final Message layer = new Message()
+                .varint(15, 2)
+                .string(1, "roads")
+                .bytes(2, new Message()
+                        .varint(1, 42)
+                        .packed(2, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6)
+                        .varint(3, MBTilesVectorTile.GEOM_LINESTRING)
+                        // absolute 2,3 then 1,7 and 6,4
+                        .packed(4, command(CMD_MOVE_TO, 1), zigzag(2), zigzag(3), command(CMD_LINE_TO, 2),
+                                zigzag(-1), zigzag(4), zigzag(5), zigzag(-3))
+                        .toByteArray());
+        for (String key : new String[]{"name", "width", "length", "offset", "layer", "lanes", "oneway"}) {
+            layer.string(3, key);
+        }
+        return layer
+                .bytes(4, new Message().string(1, "main").toByteArray())
+                .bytes(4, new Message().fixed32(2, Float.floatToIntBits(1.5f)).toByteArray())
+                .bytes(4, new Message().fixed64(3, Double.doubleToLongBits(2.25)).toByteArray())
+                .bytes(4, new Message().varint(6, zigzag(-3)).toByteArray())
+                .bytes(4, new Message().varint(4, -7).toByteArray())
+                .bytes(4, new Message().varint(5, 3000000000L).toByteArray())
+                .bytes(4, new Message().varint(7, 1).toByteArray())
+                .varint(5, 512)
+                .toByteArray();
+    }
+
+    /**
+     * One closed polygon and the default extent.
+     */
+    private static byte[] water() {
+        return new Message()
+                .string(1, "water")
+                .bytes(2, new Message()
+                        .varint(3, MBTilesVectorTile.GEOM_POLYGON)
+                        .packed(4, command(CMD_MOVE_TO, 1), zigzag(10), zigzag(10), command(CMD_LINE_TO, 2),
+                                zigzag(10), zigzag(0), zigzag(0), zigzag(10), command(CMD_CLOSE_PATH, 1))
+                        .toByteArray())
+                .toByteArray();
+    }
+
+    private static long command(int id, int count) {
+        return (count << 3) | id;
+    }
+
+    private static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    /**
+     * Writes the fields of one protocol buffer message.
+     */
+    private static class Message {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Message varint(int field, long value) {
+            key(field, 0);
+            writeVarint(this.out, value);
+            return this;
+        }
+
+        Message fixed32(int field, int value) {
+            key(field, 5);
+            for (int i = 0; i < 4; i++) {
+                this.out.write(value >>> (i * 8));
+            }
+            return this;
+        }
+
+        Message fixed64(int field, long value) {
+            key(field, 1);
+            for (int i = 0; i < 8; i++) {
+                this.out.write((int) (value >>> (i * 8)));
+            }
+            return this;
+        }
+
+        Message bytes(int field, byte[] value) {
+            key(field, 2);
+            writeVarint(this.out, value.length);
+            this.out.write(value, 0, value.length);
+            return this;
+        }
+
+        Message string(int field, String value) {
+            try {
+                return bytes(field, value.getBytes("UTF-8"));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        Message packed(int field, long... values) {
+            final ByteArrayOutputStream packed = new ByteArrayOutputStream();
+            for (long value : values) {
+                writeVarint(packed, value);
+            }
+            return bytes(field, packed.toByteArray());
+        }
+
+        Message raw(byte[] data) {
+            this.out.write(data, 0, data.length);
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return this.out.toByteArray();
+        }
+
+        private void key(int field, int wire) {
+            writeVarint(this.out, (field << 3) | wire);
+        }
+
+        private static void writeVarint(ByteArrayOutputStream out, long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+    }
+
+}
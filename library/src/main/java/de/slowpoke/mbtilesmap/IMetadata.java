@@ -20,11 +20,15 @@ public interface IMetadata {
     public static final String KEY_FORMAT = "format";
     public static final String FORMAT_JPG = "jpg";
     public static final String FORMAT_PNG = "png";
+    public static final String FORMAT_PBF = "pbf";
+    public static final String FORMAT_WEBP = "webp";
     public static final String KEY_VERSION = "version";
     public static final String KEY_TYPE = "type";
     public static final String TYPE_BASELAYER = "baselayer";
     public static final String TYPE_OVERLAY = "overlay";
     public static final String KEY_DESCRIPTION = "description";
     public static final String KEY_NAME = "name";
+    public static final String KEY_MINZOOM = "minzoom";
+    public static final String KEY_MAXZOOM = "maxzoom";
 
 }
@@ -0,0 +1,37 @@
+/**
+ *
+ */
+package de.slowpoke.mbtilesmap;
+
+import android.graphics.Bitmap;
+
+/**
+ * Anything which serves tiles by their coordinates.
+ *
+ * @author Brian
+ */
+public interface ITileSource {
+
+    /**
+     * Get one tile.
+     *
+     * @param x the tile column
+     * @param y the tile row
+     * @param z the zoom level
+     * @return the bitmap of the tile or <code>null</code> if no tile matched
+     * the given parameters
+     */
+    Bitmap getTile(int x, int y, int z);
+
+    /**
+     * Get the data of one tile as it is stored, without decoding it.
+     *
+     * @param x the tile column
+     * @param y the tile row
+     * @param z the zoom level
+     * @return the tile data or <code>null</code> if no tile matched the given
+     * parameters
+     */
+    byte[] getTileBytes(int x, int y, int z);
+
+}
@@ -1,30 +1,111 @@
 package de.slowpoke.mbtilesmap;
 
-import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
-import android.graphics.BitmapFactory;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.slowpoke.mbtilesmap.MBTilesMetadata.TileFormat;
 
 /**
  * Maintains a {@link SQLiteDatabase} and provides read and write access to
- * tiles.
+ * tiles. Reads are thread-safe and may run in parallel; they are spread over
+ * the read-only connections, if any, or rely on the connection pool of a
+ * database in write-ahead logging mode.
  *
  * @author Brian
  * @version 1.1
  */
-public class MBTiles implements IMBTiles {
+public class MBTiles implements IMBTiles, ITileSource {
+
+    /**
+     * Compression quality used by {@link #setTile(Bitmap, int, int, int)}
+     * unless another one has been {@link #setQuality(int) set}.
+     */
+    public final static int DEFAULT_QUALITY = 100;
 
-    private final static String[] COLUMNS_TILE_DATA = new String[]{COL_TILE_DATA};
-    private final static String SELECTION = COL_TILE_COLUMN + "=? " + COL_TILE_ROW + "=? " + COL_ZOOM_LEVEL + "=?";
+    private final static String SELECT_TILE_RANGE = "SELECT " + COL_TILE_COLUMN + ", " + COL_TILE_ROW + ", "
+            + COL_TILE_DATA + " FROM " + TABLE_NAME + " WHERE " + COL_ZOOM_LEVEL + "=? AND " + COL_TILE_COLUMN
+            + " BETWEEN ? AND ? AND " + COL_TILE_ROW + " BETWEEN ? AND ?";
+    private final static String SELECT_TILE_PAGE = "SELECT " + COL_TILE_COLUMN + ", " + COL_TILE_ROW + ", "
+            + COL_TILE_DATA + " FROM " + TABLE_NAME + " WHERE " + COL_ZOOM_LEVEL + "=? AND " + COL_TILE_COLUMN
+            + ">=? AND (" + COL_TILE_COLUMN + ">? OR " + COL_TILE_ROW + ">?) ORDER BY " + COL_TILE_COLUMN + ", "
+            + COL_TILE_ROW + " LIMIT ?";
+    private final static String SELECT_TILE_RANGE_PAGE = "SELECT " + COL_TILE_COLUMN + ", " + COL_TILE_ROW + ", "
+            + COL_TILE_DATA + " FROM " + TABLE_NAME + " WHERE " + COL_ZOOM_LEVEL + "=? AND " + COL_TILE_COLUMN
+            + " BETWEEN ? AND ? AND " + COL_TILE_ROW + " BETWEEN ? AND ? AND " + COL_TILE_COLUMN + ">=? AND ("
+            + COL_TILE_COLUMN + ">? OR " + COL_TILE_ROW + ">?) ORDER BY " + COL_TILE_COLUMN + ", " + COL_TILE_ROW
+            + " LIMIT ?";
+    private final static String SELECT_TILE_EXISTS = "SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE "
+            + COL_ZOOM_LEVEL + "=? AND " + COL_TILE_COLUMN + "=? AND " + COL_TILE_ROW + "=?";
+    private final static String DELETE_ORPHANED_IMAGES = "DELETE FROM " + MBTilesSQLite.TABLE_IMAGES + " WHERE "
+            + MBTilesSQLite.COL_TILE_ID + " NOT IN (SELECT " + MBTilesSQLite.COL_TILE_ID + " FROM "
+            + MBTilesSQLite.TABLE_MAP + ")";
+    private final static String SELECT_NEXT_ZOOM = "SELECT MIN(" + COL_ZOOM_LEVEL + ") FROM " + TABLE_NAME
+            + " WHERE " + COL_ZOOM_LEVEL + ">?";
+    private final static String SELECT_TILE_LENGTH = "SELECT LENGTH(" + COL_TILE_DATA + ") FROM " + TABLE_NAME
+            + " WHERE " + COL_ZOOM_LEVEL + "=? AND " + COL_TILE_COLUMN + "=? AND " + COL_TILE_ROW + "=?";
+    private final static String UPDATE_METADATA = "UPDATE " + IMetadata.TABLE_NAME + " SET "
+            + IMetadata.COL_METADATA_VALUE + "=? WHERE " + IMetadata.COL_METADATA_NAME + "=?";
+    private final static String INSERT_METADATA = "INSERT INTO " + IMetadata.TABLE_NAME + " ("
+            + IMetadata.COL_METADATA_NAME + ", " + IMetadata.COL_METADATA_VALUE + ") VALUES (?, ?)";
+    private final static String SELECT_METADATA = "SELECT " + IMetadata.COL_METADATA_VALUE + " FROM "
+            + IMetadata.TABLE_NAME + " WHERE " + IMetadata.COL_METADATA_NAME + "=?";
+    private final static String DELETE_METADATA = "DELETE FROM " + IMetadata.TABLE_NAME + " WHERE "
+            + IMetadata.COL_METADATA_NAME + "=?";
+    private final static String SELECT_ZOOM_RANGE = "SELECT (SELECT MIN(" + COL_ZOOM_LEVEL + ") FROM " + TABLE_NAME
+            + "), (SELECT MAX(" + COL_ZOOM_LEVEL + ") FROM " + TABLE_NAME + ")";
+    final static int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /**
+     * Receives the tiles of {@link MBTiles#getTiles(int, int, int, int, int, TileCallback)}.
+     *
+     * @author Brian
+     */
+    public static interface TileCallback {
+
+        /**
+         * Called for every tile as soon as it has been read.
+         *
+         * @param tile the decoded tile, might be <code>null</code> if the tile
+         *             data could not be decoded
+         * @param x
+         * @param y
+         * @param z
+         * @return <code>true</code> to receive further tiles,
+         * <code>false</code> to stop reading
+         */
+        boolean onTile(Bitmap tile, int x, int y, int z);
+    }
 
     private final SQLiteDatabase database;
+    private final SQLiteDatabase[] readers;
     private final MBTilesVersion version;
-    private final MBTilesMetadata metadata;
+    private volatile MBTilesMetadata metadata;
+    private final MBTilesDecoder decoder = new MBTilesDecoder();
+
+    private final ConcurrentLinkedQueue<MBTilesTileLookup> lookups = new ConcurrentLinkedQueue<MBTilesTileLookup>();
+    private final AtomicInteger nextReader = new AtomicInteger();
+    private MBTilesTileInsert insert;
+    private SQLiteStatement tileLength;
+
+    private final Object tileIndexLock = new Object();
+    private volatile MBTilesTileIndex tileIndex;
+    private File tileIndexFile;
+    private volatile int[] zoomRange;
+    private volatile MBTilesLayout layout;
+    private volatile int quality = DEFAULT_QUALITY;
+    private volatile MBTilesStatistics statistics;
 
     /**
      * Create a new {@link MBTiles} based on an existing file.
@@ -44,9 +125,29 @@ public class MBTiles implements IMBTiles {
      * @param version
      */
     public MBTiles(SQLiteDatabase database, MBTilesMetadata metadata, MBTilesVersion version) {
+        this(database, null, metadata, version);
+    }
+
+    /**
+     * Create a new {@link MBTiles} based on an existing file with additional
+     * connections for parallel reads.
+     *
+     * @param database the main connection, used for writes
+     * @param readers  read-only connections to the same file. Might be
+     *                 <code>null</code> to read through the main connection.
+     *                 They are closed together with this {@link MBTiles}. The
+     *                 main connection may be one of them.
+     * @param metadata
+     * @param version
+     */
+    public MBTiles(SQLiteDatabase database, SQLiteDatabase[] readers, MBTilesMetadata metadata,
+                   MBTilesVersion version) {
         this.database = database;
+        this.readers = (readers == null) ? new SQLiteDatabase[0] : readers;
         this.metadata = metadata;
         this.version = version;
+        // loaded right away, so every write keeps them up to date
+        this.statistics = (metadata == null) ? null : MBTilesStatistics.fromMetadata(metadata.extra);
     }
 
     /**
@@ -59,11 +160,28 @@ public class MBTiles implements IMBTiles {
      * @return
      */
     public static MBTiles create(SQLiteDatabase database, MBTilesMetadata metadata, MBTilesVersion version) {
+        return create(database, metadata, version, MBTilesLayout.FLAT);
+    }
+
+    /**
+     * Create a new {@link MBTiles} with the given storage layout and also
+     * create tables and indexes in the underlying database file.
+     *
+     * @param database
+     * @param metadata
+     * @param version
+     * @param layout   {@link MBTilesLayout#DEDUPLICATED} to store identical
+     *                 tiles only once
+     * @return
+     */
+    public static MBTiles create(SQLiteDatabase database, MBTilesMetadata metadata, MBTilesVersion version,
+                                 MBTilesLayout layout) {
 
-        MBTilesSQLite.createTableTiles(database, version);
-        MBTilesSQLite.createIndexTiles(database, version);
+        MBTilesSQLite.createTiles(database, version, layout);
 
-        return new MBTiles(database, metadata, version);
+        final MBTiles tiles = new MBTiles(database, metadata, version);
+        tiles.layout = layout;
+        return tiles;
     }
 
     /**
@@ -74,27 +192,626 @@ public class MBTiles implements IMBTiles {
      * @param y
      * @param z
      * @return the bitmap of the tile or <code>null</code> if no tile matched
-     * the given parameters
+     * the given parameters or the tiles are {@link #isVector() vector tiles}
      */
+    @Override
     public Bitmap getTile(final int x, final int y, final int z) {
+        if (isVector() || !mightExist(x, y, z)) {
+            return null;
+        }
+
+        final MBTilesTileLookup lookup = acquireLookup();
+        try {
+            return lookup.decode(x, y, z, this.decoder);
+        } finally {
+            releaseLookup(lookup);
+        }
+    }
+
+    /**
+     * Get all tiles of a zoom level within a range of columns and rows. The
+     * tiles are read with one query on the tiles index and handed to the
+     * callback one by one while the query is still running. Tiles which don't
+     * exist are skipped. The range is clipped to the bounds of the metadata
+     * first, so ranges outside of the bounds don't touch the database.
+     *
+     * @param z        the zoom level
+     * @param minX     the first column
+     * @param minY     the first row
+     * @param maxX     the last column (inclusive)
+     * @param maxY     the last row (inclusive)
+     * @param callback receives the tiles in index order
+     * @return the number of tiles handed to the callback
+     */
+    public int getTiles(final int z, final int minX, final int minY, final int maxX, final int maxY,
+                        final TileCallback callback) {
+        int fromX = minX, fromY = minY, toX = maxX, toY = maxY;
+        final MBTilesBounds bounds = (this.metadata == null) ? null : this.metadata.bounds;
+        if (bounds != null) {
+            if (z < 0 || z > MBTilesBounds.MAX_ZOOM) {
+                return 0;
+            }
+            fromX = Math.max(fromX, bounds.getMinColumn(z));
+            fromY = Math.max(fromY, bounds.getMinRow(z));
+            toX = Math.min(toX, bounds.getMaxColumn(z));
+            toY = Math.min(toY, bounds.getMaxRow(z));
+        }
+
+        if (fromX > toX || fromY > toY) {
+            return 0;
+        }
+
+        final Cursor c = MBTilesQuery.query(nextReader(), SELECT_TILE_RANGE, z, fromX, toX, fromY, toY);
+        final boolean vector = isVector();
+
+        int count = 0;
+        try {
+            while (c.moveToNext()) {
+                final byte[] bb = c.getBlob(2);
+                final Bitmap tile = (bb == null || vector) ? null : this.decoder.decode(bb, 0, bb.length);
+
+                count++;
+                if (!callback.onTile(tile, c.getInt(0), c.getInt(1), z)) {
+                    break;
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        return count;
+    }
+
+    /**
+     * Get the data of one tile, inflated if it is gzip compressed as vector
+     * tiles usually are.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @return the uncompressed tile data or <code>null</code> if no tile
+     * matched or it could not be inflated
+     */
+    public byte[] getTileData(final int x, final int y, final int z) {
+        final byte[] data = getTileBytes(x, y, z);
+        if (!MBTilesVectorTile.isGzipped(data)) {
+            return data;
+        }
+
+        try {
+            return MBTilesVectorTile.gunzip(data);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get one vector tile. Its layers and features are only decoded when they
+     * are accessed.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @return the vector tile or <code>null</code> if no tile matched, it
+     * could not be inflated or its layers are not framed correctly. Errors
+     * inside a layer are only noticed when the layer is read, see
+     * {@link MBTilesVectorTile}.
+     */
+    public MBTilesVectorTile getVectorTile(final int x, final int y, final int z) {
+        final byte[] data = getTileBytes(x, y, z);
+        if (data == null) {
+            return null;
+        }
+
+        try {
+            final MBTilesVectorTile tile = new MBTilesVectorTile(data);
+            // only skips from layer to layer
+            tile.getLayerCount();
+            return tile;
+        } catch (IOException e) {
+            return null;
+        } catch (IllegalStateException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the tiles are vector tiles, which can't be
+     * decoded into bitmaps
+     */
+    public boolean isVector() {
+        return this.metadata != null && this.metadata.format == TileFormat.PBF;
+    }
+
+    /**
+     * Decode tile data with the decode options of this {@link MBTiles}.
+     *
+     * @param data
+     * @return the decoded tile or <code>null</code> if it could not be decoded
+     */
+    Bitmap decode(final byte[] data) {
+        return this.decoder.decode(data, 0, data.length);
+    }
+
+    /**
+     * Set the options used to decode tiles. Use {@link Bitmap.Config#RGB_565}
+     * for opaque layers to halve the memory per tile and a sample size above
+     * <code>1</code> to downscale the tiles while decoding.
+     *
+     * @param config     the preferred bitmap config
+     * @param sampleSize the sample size, a power of two
+     */
+    public void setDecodeOptions(final Bitmap.Config config, final int sampleSize) {
+        this.decoder.setOptions(config, sampleSize);
+    }
+
+    /**
+     * Set a pool to decode tiles into reused bitmaps. Tiles are returned to
+     * the pool with {@link #recycleTile(Bitmap)}.
+     *
+     * @param pool the pool or <code>null</code> to always allocate new bitmaps
+     */
+    public void setBitmapPool(final MBTilesBitmapPool pool) {
+        this.decoder.setPool(pool);
+    }
+
+    /**
+     * Return a tile to the bitmap pool once it isn't displayed anymore. The
+     * tile must not be used by the caller afterwards.
+     *
+     * @param tile a tile returned by {@link #getTile(int, int, int)}
+     * @return <code>true</code> if the tile has been pooled
+     */
+    public boolean recycleTile(final Bitmap tile) {
+        final MBTilesBitmapPool pool = this.decoder.getPool();
+        return pool != null && pool.put(tile);
+    }
+
+    /**
+     * Get the data of one tile as it is stored, without decoding it. The
+     * coordinates are checked the same way as in
+     * {@link #getTile(int, int, int)}.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @return the tile data or <code>null</code> if no tile matched the given
+     * parameters
+     */
+    @Override
+    public byte[] getTileBytes(final int x, final int y, final int z) {
+        if (!mightExist(x, y, z)) {
+            return null;
+        }
+
+        final MBTilesTileLookup lookup = acquireLookup();
+        try {
+            return lookup.copy(x, y, z);
+        } finally {
+            releaseLookup(lookup);
+        }
+    }
+
+    /**
+     * Copy the data of one tile as it is stored into a reusable buffer. If the
+     * tile doesn't fit into the buffer, nothing is copied and the caller may
+     * retry with a buffer of the returned size.
+     * <p/>
+     * This saves the array for the result, not every allocation: SQLite hands
+     * the data over through a file descriptor and a stream which are created
+     * for each tile, see {@link MBTilesTileLookup}.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @param buffer the destination buffer
+     * @param offset the offset in the destination buffer
+     * @return the size of the tile data or <code>-1</code> if no tile matched
+     * the given parameters
+     */
+    public int getTileBytes(final int x, final int y, final int z, final byte[] buffer, final int offset) {
+        if (!mightExist(x, y, z)) {
+            return -1;
+        }
+
+        final MBTilesTileLookup lookup = acquireLookup();
+        try {
+            return lookup.copy(x, y, z, buffer, offset);
+        } finally {
+            releaseLookup(lookup);
+        }
+    }
+
+    /**
+     * @param x
+     * @param y
+     * @param z
+     * @return <code>false</code> if the metadata has bounds and the tile is
+     * outside of them or if the tile index knows that the tile is missing
+     */
+    private boolean mightExist(final int x, final int y, final int z) {
         try {
             if (!this.metadata.bounds.isInBounds(x, y, z)) {
-                return null;
+                return false;
             }
         } catch (NullPointerException ignore) {
         }
 
-        final String[] selArgs = new String[]{Integer.toString(x), Integer.toString(y), Integer.toString(z)};
-        final Cursor c = database.query(TABLE_NAME, COLUMNS_TILE_DATA, SELECTION, selArgs, null, null, null, "1");
+        final MBTilesTileIndex index = this.tileIndex;
+        return index == null || index.mightContain(x, y, z);
+    }
 
-        if (!c.moveToFirst()) {
-            c.close();
+    /**
+     * Enable the {@link MBTilesTileIndex} so lookups of missing tiles don't
+     * query the database. The index is loaded from the sidecar file if it is
+     * still valid, otherwise it is built with one scan over the tiles index
+     * and saved to the sidecar. It is saved again on {@link #close()} if tiles
+     * have been written, and built again with more room once more tiles have
+     * been written than it has been sized for.
+     * <p/>
+     * Writes wait while the index is loaded or built, so no tile is missed.
+     *
+     * @param sidecar the sidecar file, e.g. next to the archive. Might be
+     *                <code>null</code> to keep the index in memory only.
+     * @return the enabled index
+     */
+    public MBTilesTileIndex enableTileIndex(final File sidecar) {
+        final File file = new File(this.database.getPath());
+        final boolean writeable = isWriteable();
+
+        // the transaction keeps other writers out, they hold the connection
+        // before they take the lock in tileWritten()
+        if (writeable) {
+            this.database.beginTransactionNonExclusive();
+        }
+        try {
+            final MBTilesTileIndex index;
+            synchronized (this.tileIndexLock) {
+                MBTilesTileIndex loaded = (sidecar == null) ? null : MBTilesTileIndex.load(sidecar, file);
+                if (loaded == null) {
+                    loaded = MBTilesTileIndex.build(this.database, MBTilesTileIndex.DEFAULT_BITS_PER_TILE);
+                    if (sidecar != null) {
+                        try {
+                            loaded.save(sidecar, file);
+                        } catch (IOException ignore) {
+                        }
+                    }
+                }
+
+                index = loaded;
+                this.tileIndexFile = sidecar;
+                this.tileIndex = index;
+            }
+            if (writeable) {
+                this.database.setTransactionSuccessful();
+            }
+            return index;
+        } finally {
+            if (writeable) {
+                this.database.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Build the tile index again with twice the room once it is full, in the
+     * same way as {@link #enableTileIndex(File)}.
+     *
+     * @param full the index which is full
+     */
+    private void growTileIndex(final MBTilesTileIndex full) {
+        this.database.beginTransactionNonExclusive();
+        try {
+            synchronized (this.tileIndexLock) {
+                // another writer might have grown it already
+                if (this.tileIndex == full) {
+                    this.tileIndex = MBTilesTileIndex.build(this.database, MBTilesTileIndex.DEFAULT_BITS_PER_TILE,
+                            2 * full.getCount());
+                }
+            }
+            this.database.setTransactionSuccessful();
+        } finally {
+            this.database.endTransaction();
+        }
+    }
+
+    /**
+     * @return the enabled tile index or <code>null</code>
+     */
+    MBTilesTileIndex getTileIndex() {
+        return this.tileIndex;
+    }
+
+    /**
+     * Called for every tile which has been written to the database.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @param size     the size of the tile data
+     * @param replaced the size of the tile which has been replaced, see
+     *                 {@link #getReplacedLength(SQLiteStatement, int, int, int)}
+     */
+    void tileWritten(final int x, final int y, final int z, final int size, final int replaced) {
+        final MBTilesTileIndex index;
+        synchronized (this.tileIndexLock) {
+            index = this.tileIndex;
+            if (index != null) {
+                index.add(x, y, z);
+            }
+        }
+        if (index != null && index.isFull()) {
+            growTileIndex(index);
+        }
+
+        final MBTilesStatistics stats = this.statistics;
+        if (stats != null) {
+            stats.add(x, y, z, size, replaced);
+        }
+
+        synchronized (this) {
+            final int[] range = this.zoomRange;
+            if (range != null && (z < range[0] || z > range[1])) {
+                this.zoomRange = (range[0] > range[1]) ? new int[]{z, z}
+                        : new int[]{Math.min(z, range[0]), Math.max(z, range[1])};
+            }
+        }
+    }
+
+    /**
+     * Called before a tile is written, so the statistics can account for the
+     * tile it replaces. Only queries the database while statistics are kept.
+     *
+     * @param tileLength a statement compiled with {@link #compileTileLength()},
+     *                   used by one thread at a time
+     * @param x
+     * @param y
+     * @param z
+     * @return the size of the existing tile or <code>-1</code> if there is
+     * none or no statistics are kept
+     */
+    int getReplacedLength(final SQLiteStatement tileLength, final int x, final int y, final int z) {
+        if (this.statistics == null) {
+            return -1;
+        }
+        // not the bounds, tiles outside of them might have been written
+        final MBTilesTileIndex index = this.tileIndex;
+        if (index != null && !index.mightContain(x, y, z)) {
+            return -1;
+        }
+
+        tileLength.bindLong(1, z);
+        tileLength.bindLong(2, x);
+        tileLength.bindLong(3, y);
+        try {
+            return (int) tileLength.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return a new statement for {@link #getReplacedLength(SQLiteStatement, int, int, int)}
+     * on the main connection, so it sees the tiles of an open transaction
+     */
+    SQLiteStatement compileTileLength() {
+        return this.database.compileStatement(SELECT_TILE_LENGTH);
+    }
+
+    /**
+     * Check if a tile exists. Only the tiles index is read, not the tile.
+     * Runs on the main connection, so it sees the tiles of a
+     * {@link MBTilesWriter} used on the same thread.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @return <code>true</code> if the tile exists
+     */
+    boolean hasTile(final int x, final int y, final int z) {
+        final SQLiteStatement exists = compileTileExists();
+        try {
+            return hasTile(exists, x, y, z);
+        } finally {
+            exists.close();
+        }
+    }
+
+    /**
+     * Check if a tile exists with a statement compiled once for many tiles.
+     *
+     * @param exists a statement compiled with {@link #compileTileExists()},
+     *               used by one thread at a time
+     * @param x
+     * @param y
+     * @param z
+     * @return <code>true</code> if the tile exists
+     * @see #hasTile(int, int, int)
+     */
+    boolean hasTile(final SQLiteStatement exists, final int x, final int y, final int z) {
+        return mightExist(x, y, z) && exists(exists, x, y, z);
+    }
+
+    /**
+     * @return a new statement for {@link #hasTile(SQLiteStatement, int, int, int)}
+     * on the main connection, so it sees the tiles of an open transaction
+     */
+    SQLiteStatement compileTileExists() {
+        return this.database.compileStatement(SELECT_TILE_EXISTS);
+    }
+
+    /**
+     * Get the statistics of the tiles. They are read from the metadata when
+     * the archive is opened, if they have been
+     * {@link #computeStatistics() computed} before, and kept up to date while
+     * tiles are written.
+     *
+     * @return the statistics or <code>null</code> if they have never been
+     * computed
+     */
+    public MBTilesStatistics getStatistics() {
+        return this.statistics;
+    }
+
+    /**
+     * Compute the statistics with one pass over the tiles and store them in
+     * the metadata, if the database is writeable.
+     *
+     * @return the statistics
+     */
+    public MBTilesStatistics computeStatistics() {
+        final MBTilesStatistics stats = MBTilesStatistics.compute(nextReader());
+        synchronized (this) {
+            this.statistics = stats;
+        }
+        if (isWriteable()) {
+            saveStatistics();
+        }
+        return stats;
+    }
+
+    /**
+     * Write all tiles and the metadata to an immutable {@link MBTilesPack}.
+     * The tiles are streamed in index order, so the archive is never held in
+     * memory.
+     *
+     * @param pack the file to write, replaced if it exists
+     * @return the number of tiles written
+     * @throws IOException
+     */
+    public int exportPack(File pack) throws IOException {
+        return MBTilesPack.write(nextReader(), this.metadata, pack);
+    }
+
+    /**
+     * Store the statistics in the metadata table and in the extra entries of
+     * {@link #getMetadata()}. Called by {@link #close()} if they changed.
+     */
+    public void saveStatistics() {
+        final MBTilesStatistics stats = this.statistics;
+        if (stats == null) {
+            return;
+        }
+
+        final Map<String, String> entries = stats.toMetadata();
+        stats.setDirty(false);
+
+        this.database.beginTransactionNonExclusive();
+        try {
+            for (Map.Entry<String, String> e : entries.entrySet()) {
+                writeMetadata(e.getKey(), e.getValue());
+            }
+            this.database.setTransactionSuccessful();
+        } finally {
+            this.database.endTransaction();
+        }
+
+        final MBTilesMetadata m = this.metadata;
+        if (m != null) {
+            final LinkedHashMap<String, String> extra = (m.extra == null) ? new LinkedHashMap<String, String>()
+                    : new LinkedHashMap<String, String>(m.extra);
+            extra.putAll(entries);
+            this.metadata = new MBTilesMetadata(m.name, m.description, m.type, m.version, m.format, m.bounds, extra);
+        }
+    }
+
+    /**
+     * @return the lowest zoom level of the tiles, taken from the
+     * <code>minzoom</code> metadata entry if there is one. <code>-1</code> if
+     * there are no tiles.
+     */
+    public int getMinZoom() {
+        return getZoomRange()[0];
+    }
+
+    /**
+     * @return the highest zoom level of the tiles, taken from the
+     * <code>maxzoom</code> metadata entry if there is one. <code>-1</code> if
+     * there are no tiles.
+     */
+    public int getMaxZoom() {
+        return getZoomRange()[1];
+    }
+
+    /**
+     * The zoom range is read from the metadata or queried once and then kept
+     * up to date by {@link #tileWritten(int, int, int, int, int)}.
+     */
+    private int[] getZoomRange() {
+        int[] range = this.zoomRange;
+        if (range != null) {
+            return range;
+        }
+
+        synchronized (this) {
+            if (this.zoomRange == null) {
+                range = zoomRangeFromMetadata(this.metadata);
+                final MBTilesStatistics stats = getStatistics();
+                if (range == null && stats != null && stats.getMinZoom() >= 0) {
+                    range = new int[]{stats.getMinZoom(), stats.getMaxZoom()};
+                }
+                if (range == null) {
+                    range = new int[]{-1, -1};
+                    final Cursor c = nextReader().rawQuery(SELECT_ZOOM_RANGE, null);
+                    try {
+                        if (c.moveToFirst() && !c.isNull(0)) {
+                            range = new int[]{c.getInt(0), c.getInt(1)};
+                        }
+                    } finally {
+                        c.close();
+                    }
+                }
+                this.zoomRange = range;
+            }
+            return this.zoomRange;
+        }
+    }
+
+    /**
+     * @param metadata
+     * @return <code>[min, max]</code> from the <code>minzoom</code> and
+     * <code>maxzoom</code> entries, or <code>null</code> if they are missing
+     */
+    static int[] zoomRangeFromMetadata(final MBTilesMetadata metadata) {
+        if (metadata == null || metadata.extra == null) {
             return null;
         }
-        final byte[] bb = c.getBlob(c.getColumnIndex(COL_TILE_DATA));
-        c.close();
 
-        return BitmapFactory.decodeByteArray(bb, 0, bb.length);
+        try {
+            final int min = Integer.parseInt(metadata.extra.get(IMetadata.KEY_MINZOOM).trim());
+            final int max = Integer.parseInt(metadata.extra.get(IMetadata.KEY_MAXZOOM).trim());
+            return (min <= max) ? new int[]{min, max} : null;
+        } catch (NullPointerException e) {
+            return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Take an idle lookup or compile a new one. There are never more lookups
+     * than threads reading at the same time.
+     *
+     * @return a lookup for exclusive use until it is released
+     */
+    private MBTilesTileLookup acquireLookup() {
+        final MBTilesTileLookup lookup = this.lookups.poll();
+        return (lookup != null) ? lookup : new MBTilesTileLookup(nextReader());
+    }
+
+    private void releaseLookup(final MBTilesTileLookup lookup) {
+        this.lookups.offer(lookup);
+    }
+
+    /**
+     * @return the next read-only connection in turn, or the main connection
+     * if there are none
+     */
+    private SQLiteDatabase nextReader() {
+        if (this.readers.length == 0) {
+            return this.database;
+        }
+        return this.readers[(this.nextReader.getAndIncrement() & Integer.MAX_VALUE) % this.readers.length];
     }
 
     /**
@@ -109,58 +826,510 @@ public class MBTiles implements IMBTiles {
      * database, <code>false</code> otherwise
      */
     public boolean setTile(final Bitmap tile, final int x, final int y, final int z) {
-        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
+        final byte[] data;
         try {
-            switch (this.metadata.format) {
-                case JPEG:
-                    tile.compress(CompressFormat.JPEG, 100, baos);
-                    break;
+            data = compress(tile, this.metadata.format, this.quality);
+        } catch (NullPointerException ignore) {
+            return false;
+        }
 
-                case PNG:
-                    tile.compress(CompressFormat.PNG, 100, baos);
-                    break;
+        if (data == null) {
+            return false;
+        }
+
+        return setTileBytes(data, x, y, z);
+    }
 
-                default:
-                    return false;
+    /**
+     * Set the data of a tile as it is, without compressing it. Existing tiles
+     * will be overwritten.
+     *
+     * @param data the compressed tile
+     * @param x
+     * @param y
+     * @param z
+     * @return <code>true</code> if the tile data has been inserted to the
+     * database, <code>false</code> otherwise
+     */
+    public boolean setTileBytes(final byte[] data, final int x, final int y, final int z) {
+        final int replaced;
+        synchronized (this) {
+            if (this.tileLength == null) {
+                this.tileLength = compileTileLength();
             }
-        } catch (NullPointerException ignore) {
+            replaced = getReplacedLength(this.tileLength, x, y, z);
+        }
+        if (!getInsert().insert(data, x, y, z)) {
             return false;
         }
 
-        final ContentValues values = new ContentValues();
-        values.put(COL_TILE_COLUMN, x);
-        values.put(COL_TILE_ROW, y);
-        values.put(COL_ZOOM_LEVEL, z);
-        values.put(COL_TILE_DATA, baos.toByteArray());
+        tileWritten(x, y, z, data.length, replaced);
+        return true;
+    }
+
+    /**
+     * Open a {@link MBTilesWriter} to write many tiles in batched
+     * transactions.
+     *
+     * @param batchSize the number of tiles per transaction
+     * @return a new writer. It must be used and closed on the calling thread.
+     */
+    public MBTilesWriter openWriter(final int batchSize) {
+        return new MBTilesWriter(this, this.database, batchSize);
+    }
 
-        final long id = database.insertOrThrow(TABLE_NAME, null, values);
+    /**
+     * @return the compiled tile insert, created on first use
+     */
+    private synchronized MBTilesTileInsert getInsert() {
+        if (this.insert == null) {
+            this.insert = new MBTilesTileInsert(this.database, getLayout());
+        }
+        return this.insert;
+    }
+
+    /**
+     * Compress a tile.
+     *
+     * @param tile
+     * @param format  the image format
+     * @param quality the compression quality from <code>0</code> to
+     *                <code>100</code>. Ignored for lossless formats.
+     * @return the compressed tile or <code>null</code> if the format is not
+     * supported or the compression failed
+     */
+    static byte[] compress(final Bitmap tile, final TileFormat format, final int quality) {
+        final CompressFormat compressFormat;
+        switch (format) {
+            case JPEG:
+                compressFormat = CompressFormat.JPEG;
+                break;
+
+            case PNG:
+                compressFormat = CompressFormat.PNG;
+                break;
+
+            case WEBP:
+                compressFormat = webp(quality >= 100);
+                break;
+
+            default:
+                return null;
+        }
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final boolean compressed = tile.compress(compressFormat, quality, baos);
 
         try {
             baos.close();
         } catch (IOException ignore) {
         }
 
-        return (id != -1);
+        return compressed ? baos.toByteArray() : null;
+    }
+
+    /**
+     * @return how the tiles are stored, detected on first use
+     */
+    public MBTilesLayout getLayout() {
+        MBTilesLayout layout = this.layout;
+        if (layout == null) {
+            layout = MBTilesSQLite.getLayout(this.database);
+            this.layout = layout;
+        }
+        return layout;
+    }
+
+    /**
+     * Newer platforms distinguish lossy and lossless WebP; on older ones
+     * {@link CompressFormat#WEBP} is lossless at quality <code>100</code>.
+     */
+    private static CompressFormat webp(final boolean lossless) {
+        try {
+            return CompressFormat.valueOf(lossless ? "WEBP_LOSSLESS" : "WEBP_LOSSY");
+        } catch (IllegalArgumentException e) {
+            return CompressFormat.WEBP;
+        }
+    }
+
+    /**
+     * Set the compression quality used to write bitmaps with the format of
+     * the metadata. It is ignored by PNG; WebP is lossless at
+     * <code>100</code>.
+     *
+     * @param quality from <code>0</code> to <code>100</code>
+     */
+    public void setQuality(final int quality) {
+        this.quality = Math.max(0, Math.min(100, quality));
+    }
+
+    /**
+     * @return the compression quality used to write bitmaps
+     */
+    public int getQuality() {
+        return this.quality;
+    }
+
+    /**
+     * Convert all tiles to another image format in place. The tiles are read
+     * page by page along the tiles index and handed to a
+     * {@link MBTilesIngestPipeline}, which decodes and compresses them in
+     * parallel and writes them in batched transactions. Tiles which already
+     * have the target format are skipped, so an interrupted conversion can
+     * simply be run again. The format of the metadata is only updated once
+     * every tile has been converted; if a tile could not be decoded or
+     * compressed, it keeps its format and so does the metadata.
+     *
+     * @param format    the new format, {@link TileFormat#WEBP}, {@link TileFormat#JPEG}
+     *                  or {@link TileFormat#PNG}
+     * @param quality   the compression quality
+     * @param threads   the number of encoder threads
+     * @param batchSize the number of tiles per page and per transaction
+     * @return the number of converted tiles, tiles which failed are not
+     * counted
+     * @throws InterruptedException if interrupted while waiting for the pipeline
+     */
+    public long reencode(final TileFormat format, final int quality, final int threads, final int batchSize)
+            throws InterruptedException {
+        if (format == TileFormat.PBF || isVector()) {
+            throw new IllegalArgumentException("Vector tiles can't be re-encoded");
+        }
+
+        // room for a full batch, so the writer doesn't commit half of it
+        final MBTilesIngestPipeline pipeline = new MBTilesIngestPipeline(this, threads,
+                Math.max(threads * 4, batchSize), batchSize);
+        try {
+            int z = firstZoom(-1);
+            int x = -1, y = -1;
+            while (z >= 0) {
+                final Cursor c = MBTilesQuery.query(nextReader(), SELECT_TILE_PAGE, z, x, x, y, batchSize);
+                int rows = 0;
+                try {
+                    while (c.moveToNext()) {
+                        rows++;
+                        x = c.getInt(0);
+                        y = c.getInt(1);
+                        final byte[] data = c.getBlob(2);
+                        if (data != null && TileFormat.detect(data) != format) {
+                            pipeline.submitReencode(data, x, y, z, format, quality);
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+
+                if (rows < batchSize) {
+                    z = firstZoom(z);
+                    x = -1;
+                    y = -1;
+                }
+            }
+        } finally {
+            pipeline.close();
+        }
+
+        if (pipeline.getFailedCount() == 0) {
+            setFormat(format);
+        }
+        return pipeline.getWrittenCount();
+    }
+
+    /**
+     * Copy the tiles of another archive into this one. The tile data is copied
+     * as is, without decoding, and written by an {@link MBTilesIngestPipeline}
+     * in batched transactions while the next tiles are read. The bounds of the
+     * metadata are extended to cover the copied area. In the
+     * {@link MBTilesLayout#DEDUPLICATED} layout images of replaced tiles which
+     * no tile refers to anymore are deleted. Pages freed by replaced tiles are
+     * returned to the file system if the archive uses incremental auto vacuum,
+     * like archives created by {@link MBTilesMap} or after {@link #compact()}.
+     *
+     * @param source    the archive to copy from
+     * @param conflict  what to do with tiles which exist in both archives
+     * @param bounds    only copy tiles intersecting these bounds, might be
+     *                  <code>null</code>
+     * @param minZoom   the lowest zoom level to copy
+     * @param maxZoom   the highest zoom level to copy
+     * @param batchSize the number of tiles per page and per transaction
+     * @return the number of copied tiles
+     * @throws InterruptedException     if interrupted while waiting for the pipeline
+     * @throws IllegalArgumentException if the source is this archive or its
+     *                                  tiles have another format
+     */
+    public long merge(final MBTiles source, final MBTilesConflict conflict, final MBTilesBounds bounds,
+                      final int minZoom, final int maxZoom, final int batchSize) throws InterruptedException {
+        if (source == this) {
+            throw new IllegalArgumentException("Can't merge an archive into itself");
+        }
+        final TileFormat format = (this.metadata == null) ? null : this.metadata.format;
+        final TileFormat sourceFormat = (source.getMetadata() == null) ? null : source.getMetadata().format;
+        if (format != null && sourceFormat != null && format != sourceFormat) {
+            throw new IllegalArgumentException("Can't merge " + sourceFormat + " tiles into " + format + " tiles");
+        }
+
+        final boolean replace = conflict == MBTilesConflict.REPLACE || (conflict == MBTilesConflict.NEWER_WINS
+                && new File(source.getPath()).lastModified() > new File(getPath()).lastModified());
+
+        final MBTilesIngestPipeline pipeline = new MBTilesIngestPipeline(this, 1, batchSize * 2, batchSize);
+        final SQLiteStatement exists = replace ? null : nextReader().compileStatement(SELECT_TILE_EXISTS);
+        try {
+            int z = source.firstZoom(Math.max(minZoom, 0) - 1);
+            while (z >= 0 && z <= maxZoom) {
+                final int n = 1 << z;
+                final int[] range = (bounds == null)
+                        ? new int[]{0, n - 1, 0, n - 1}
+                        : new int[]{bounds.getMinColumn(z), bounds.getMaxColumn(z), bounds.getMinRow(z),
+                        bounds.getMaxRow(z)};
+
+                int x = -1, y = -1, rows;
+                do {
+                    final Cursor c = MBTilesQuery.query(source.nextReader(), SELECT_TILE_RANGE_PAGE, z, range[0],
+                            range[1], range[2], range[3], x, x, y, batchSize);
+                    rows = 0;
+                    try {
+                        while (c.moveToNext()) {
+                            rows++;
+                            x = c.getInt(0);
+                            y = c.getInt(1);
+                            final byte[] data = c.getBlob(2);
+                            if (data != null && (exists == null || !exists(exists, x, y, z))) {
+                                pipeline.submitBytes(data, x, y, z);
+                            }
+                        }
+                    } finally {
+                        c.close();
+                    }
+                } while (rows == batchSize);
+
+                z = source.firstZoom(z);
+            }
+        } finally {
+            if (exists != null) {
+                exists.close();
+            }
+            pipeline.close();
+        }
+
+        final MBTilesMetadata from = source.getMetadata();
+        extendBounds(bounds != null ? bounds : (from == null ? null : from.bounds));
+        if (replace && getLayout() == MBTilesLayout.DEDUPLICATED) {
+            this.database.execSQL(DELETE_ORPHANED_IMAGES);
+        }
+        vacuum();
+        return pipeline.getWrittenCount();
+    }
+
+    private static boolean exists(final SQLiteStatement exists, final int x, final int y, final int z) {
+        exists.bindLong(1, z);
+        exists.bindLong(2, x);
+        exists.bindLong(3, y);
+        return exists.simpleQueryForLong() > 0;
+    }
+
+    /**
+     * Extend the bounds of the metadata, if there are any, to cover the given
+     * bounds as well.
+     */
+    void extendBounds(final MBTilesBounds bounds) {
+        final MBTilesMetadata m = this.metadata;
+        if (m == null || m.bounds == null || bounds == null) {
+            return;
+        }
+
+        final MBTilesBounds union = new MBTilesBounds(Math.min(m.bounds.left, bounds.left),
+                Math.min(m.bounds.bottom, bounds.bottom), Math.max(m.bounds.right, bounds.right),
+                Math.max(m.bounds.top, bounds.top));
+        if (!union.equals(m.bounds)) {
+            writeMetadata(IMetadata.KEY_BOUNDS, union.toString());
+            this.metadata = new MBTilesMetadata(m.name, m.description, m.type, m.version, m.format, union, m.extra);
+        }
+    }
+
+    /**
+     * Reclaim unused space. In the {@link MBTilesLayout#DEDUPLICATED}
+     * layout images which no tile refers to anymore are deleted first. If the
+     * database doesn't use incremental auto vacuum yet, the first call
+     * switches it, which rebuilds the whole file once; later calls and
+     * {@link #merge(MBTiles, MBTilesConflict, MBTilesBounds, int, int, int)}
+     * only truncate the free pages.
+     */
+    public void compact() {
+        if (getLayout() == MBTilesLayout.DEDUPLICATED) {
+            this.database.execSQL(DELETE_ORPHANED_IMAGES);
+        }
+
+        if (pragma("auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            pragma("auto_vacuum=" + AUTO_VACUUM_INCREMENTAL);
+            this.database.execSQL("VACUUM");
+        } else {
+            vacuum();
+        }
+    }
+
+    /**
+     * Truncate the free pages, if incremental auto vacuum is enabled.
+     */
+    private void vacuum() {
+        if (pragma("auto_vacuum") == AUTO_VACUUM_INCREMENTAL) {
+            // every step frees a page, so the query has to run to the end
+            final Cursor c = this.database.rawQuery("PRAGMA incremental_vacuum", null);
+            try {
+                while (c.moveToNext()) {
+                    // keep going
+                }
+            } finally {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * Some pragmas return a row, so they have to be run as a query.
+     *
+     * @return the first column of the result or <code>-1</code>
+     */
+    private long pragma(final String pragma) {
+        final Cursor c = this.database.rawQuery("PRAGMA " + pragma, null);
+        try {
+            return (c.moveToFirst() && !c.isNull(0)) ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return the lowest zoom level above the given one which has tiles, or
+     * <code>-1</code>
+     */
+    private int firstZoom(final int above) {
+        final Cursor c = MBTilesQuery.query(nextReader(), SELECT_NEXT_ZOOM, above);
+        try {
+            return (c.moveToFirst() && !c.isNull(0)) ? c.getInt(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Change the format in the metadata table and of {@link #getMetadata()}.
+     */
+    private void setFormat(final TileFormat format) {
+        writeMetadata(IMetadata.KEY_FORMAT, format.toString());
+
+        final MBTilesMetadata m = this.metadata;
+        if (m != null) {
+            this.metadata = new MBTilesMetadata(m.name, m.description, m.type, m.version, format, m.bounds, m.extra);
+        }
+    }
+
+    /**
+     * Read one row of the metadata table, bypassing {@link #getMetadata()}.
+     *
+     * @return the value or <code>null</code> if there is no such row
+     */
+    String readMetadata(final String key) {
+        final Cursor c = this.database.rawQuery(SELECT_METADATA, new String[]{key});
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Delete one row of the metadata table.
+     */
+    void deleteMetadata(final String key) {
+        this.database.execSQL(DELETE_METADATA, new Object[]{key});
+    }
+
+    /**
+     * Update or insert one row of the metadata table.
+     */
+    void writeMetadata(final String key, final String value) {
+        final SQLiteStatement update = this.database.compileStatement(UPDATE_METADATA);
+        try {
+            update.bindString(1, value);
+            update.bindString(2, key);
+            if (update.executeUpdateDelete() == 0) {
+                this.database.execSQL(INSERT_METADATA, new Object[]{key, value});
+            }
+        } finally {
+            update.close();
+        }
     }
 
     public MBTilesMetadata getMetadata() {
         return this.metadata;
     }
 
+    public MBTilesVersion getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return the path of the underlying database file
+     */
+    public String getPath() {
+        return this.database.getPath();
+    }
+
     public boolean isWriteable() {
         return this.database.isOpen() && !this.database.isReadOnly();
     }
 
     public boolean isReadable() {
-        return this.database.isOpen() && this.database.isReadOnly();
+        return this.database.isOpen();
     }
 
     /**
      * Close the underlying database.
      */
     public void close() {
+        MBTilesTileLookup lookup;
+        while ((lookup = this.lookups.poll()) != null) {
+            lookup.close();
+        }
+
+        boolean written = false;
+        final MBTilesStatistics stats = this.statistics;
+        if (stats != null && stats.isDirty() && isWriteable()) {
+            try {
+                saveStatistics();
+                written = true;
+            } catch (RuntimeException ignore) {
+                // they will be computed again
+            }
+        }
+
+        synchronized (this) {
+            if (this.insert != null) {
+                this.insert.close();
+                this.insert = null;
+            }
+            if (this.tileLength != null) {
+                this.tileLength.close();
+                this.tileLength = null;
+            }
+        }
+
+        for (SQLiteDatabase reader : this.readers) {
+            if (reader != this.database) {
+                reader.close();
+            }
+        }
+
+        final String path = this.database.getPath();
         this.database.close();
+
+        final MBTilesTileIndex index = this.tileIndex;
+        // saving the statistics changed the archive, the sidecar would be outdated
+        if (index != null && (index.isDirty() || written) && this.tileIndexFile != null) {
+            try {
+                index.save(this.tileIndexFile, new File(path));
+            } catch (IOException ignore) {
+            }
+        }
     }
 
 }
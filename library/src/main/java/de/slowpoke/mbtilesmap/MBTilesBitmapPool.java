@@ -0,0 +1,115 @@
+package de.slowpoke.mbtilesmap;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * A pool of mutable bitmaps which can be reused as
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} when decoding tiles.
+ * Bitmaps are grouped by their width, height and config. The pool is bounded
+ * by the size of all pooled bitmaps in bytes, bitmaps which don't fit anymore
+ * are dropped.
+ *
+ * @author Brian
+ */
+public class MBTilesBitmapPool {
+
+    private final HashMap<Long, ArrayDeque<Bitmap>> pool = new HashMap<Long, ArrayDeque<Bitmap>>();
+    private final int maxBytes;
+
+    private int bytes;
+    private int hits;
+    private int misses;
+
+    /**
+     * Create a new pool.
+     *
+     * @param maxBytes the maximum size of all pooled bitmaps in bytes
+     */
+    public MBTilesBitmapPool(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Take a bitmap out of the pool.
+     *
+     * @param width
+     * @param height
+     * @param config
+     * @return a mutable bitmap with exactly these properties or
+     * <code>null</code> if there is none in the pool
+     */
+    public synchronized Bitmap get(final int width, final int height, final Bitmap.Config config) {
+        final ArrayDeque<Bitmap> bitmaps = this.pool.get(key(width, height, config));
+        final Bitmap bitmap = (bitmaps == null) ? null : bitmaps.poll();
+
+        if (bitmap == null) {
+            this.misses++;
+            return null;
+        }
+
+        this.hits++;
+        this.bytes -= bitmap.getByteCount();
+        return bitmap;
+    }
+
+    /**
+     * Return a bitmap to the pool. The bitmap must not be used by the caller
+     * anymore.
+     *
+     * @param bitmap
+     * @return <code>true</code> if the bitmap has been pooled,
+     * <code>false</code> if it is not reusable or the pool is full
+     */
+    public synchronized boolean put(final Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null) {
+            return false;
+        }
+
+        final int size = bitmap.getByteCount();
+        if (this.bytes + size > this.maxBytes) {
+            return false;
+        }
+
+        final Long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> bitmaps = this.pool.get(key);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<Bitmap>();
+            this.pool.put(key, bitmaps);
+        }
+
+        bitmaps.push(bitmap);
+        this.bytes += size;
+        return true;
+    }
+
+    /**
+     * Drop all pooled bitmaps.
+     */
+    public synchronized void clear() {
+        this.pool.clear();
+        this.bytes = 0;
+    }
+
+    /**
+     * @return the size of all pooled bitmaps in bytes
+     */
+    public synchronized int getByteCount() {
+        return this.bytes;
+    }
+
+    public synchronized int getHitCount() {
+        return this.hits;
+    }
+
+    public synchronized int getMissCount() {
+        return this.misses;
+    }
+
+    private static Long key(final int width, final int height, final Bitmap.Config config) {
+        return ((long) width << 36) | ((long) height << 8) | config.ordinal();
+    }
+
+}
@@ -3,6 +3,8 @@
  */
 package de.slowpoke.mbtilesmap;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 /**
@@ -14,6 +16,22 @@ public class MBTilesBounds implements Serializable {
 
     private static final long serialVersionUID = 3853149213984773294L;
 
+    /**
+     * The highest zoom level for which tile ranges are computed.
+     */
+    public static final int MAX_ZOOM = 29;
+
+    /**
+     * The latitude limit of the Web Mercator projection.
+     */
+    private static final double MAX_LATITUDE = 85.0511287798;
+
+    /**
+     * The bounds of the whole projection, used for malformed input. Empty
+     * bounds would hide every tile of the archive instead.
+     */
+    private static final float[] WORLD = {-180f, (float) -MAX_LATITUDE, 180f, (float) MAX_LATITUDE};
+
     /**
      * Left/West boundaray
      */
@@ -34,6 +52,11 @@ public class MBTilesBounds implements Serializable {
      */
     public final float bottom;
 
+    /**
+     * [minColumn, maxColumn, minRow, maxRow] in TMS scheme for each zoom level
+     */
+    private transient int[] ranges;
+
     /**
      * Create new bounds.
      *
@@ -47,39 +70,40 @@ public class MBTilesBounds implements Serializable {
         this.right = right;
         this.top = top;
         this.bottom = bottom;
+        this.ranges = computeRanges();
     }
 
     /**
      * Create new bounds from an array of floats
      *
      * @param bounds an array of floats with the length of <code>4</code> with the
-     *               following ordering <code>[left, bottom, right, top]</code>
+     *               following ordering <code>[left, bottom, right, top]</code>,
+     *               the whole world otherwise
      */
     public MBTilesBounds(float[] bounds) {
-        if (bounds != null && bounds.length == 4) {
-            this.left = bounds[0];
-            this.right = bounds[1];
-            this.top = bounds[2];
-            this.bottom = bounds[3];
-        } else {
-            this.left = 0;
-            this.right = 0;
-            this.top = 0;
-            this.bottom = 0;
+        if (bounds == null || bounds.length != 4) {
+            bounds = WORLD;
         }
+        this.left = bounds[0];
+        this.bottom = bounds[1];
+        this.right = bounds[2];
+        this.top = bounds[3];
+        this.ranges = computeRanges();
     }
 
     /**
      * Create new bounds from a String
      *
      * @param string <code>left,bottom,right,top</code> e.g.
-     *               <code>-180.0,-85,180,85</code>
+     *               <code>-180.0,-85,180,85</code>, the whole world if it
+     *               hasn't four values
      */
     public MBTilesBounds(String string) throws NumberFormatException {
 
         String[] splitted = string.split(",");
-        float[] floats = new float[4];
+        float[] floats = WORLD;
         if (splitted.length == 4) {
+            floats = new float[4];
             floats[0] = Float.parseFloat(splitted[0]);
             floats[1] = Float.parseFloat(splitted[1]);
             floats[2] = Float.parseFloat(splitted[2]);
@@ -87,9 +111,10 @@ public class MBTilesBounds implements Serializable {
         }
 
         this.left = floats[0];
-        this.right = floats[1];
-        this.top = floats[2];
-        this.bottom = floats[3];
+        this.bottom = floats[1];
+        this.right = floats[2];
+        this.top = floats[3];
+        this.ranges = computeRanges();
     }
 
     /**
@@ -101,16 +126,91 @@ public class MBTilesBounds implements Serializable {
 
     /**
      * Checks if the tile with the supplied coordinates is within the bounds
-     * (and thus is actually available)
+     * (and thus is actually available). Only compares against the tile ranges
+     * which have been computed when the bounds were created.
      *
-     * @param x
-     * @param y
-     * @param z
-     * @return
+     * @param x the tile column
+     * @param y the tile row in TMS scheme, i.e. counted from the south
+     * @param z the zoom level
+     * @return <code>true</code> if the tile intersects the bounds
      */
     public boolean isInBounds(final int x, final int y, final int z) {
-        // TODO
-        return true;
+        if (z < 0 || z > MAX_ZOOM) {
+            return false;
+        }
+
+        final int i = z * 4;
+        return x >= ranges[i] && x <= ranges[i + 1] && y >= ranges[i + 2] && y <= ranges[i + 3];
+    }
+
+    /**
+     * @param z the zoom level, at most {@link #MAX_ZOOM}
+     * @return the first tile column intersecting the bounds
+     */
+    public int getMinColumn(final int z) {
+        return ranges[z * 4];
+    }
+
+    /**
+     * @param z the zoom level, at most {@link #MAX_ZOOM}
+     * @return the last tile column intersecting the bounds
+     */
+    public int getMaxColumn(final int z) {
+        return ranges[z * 4 + 1];
+    }
+
+    /**
+     * @param z the zoom level, at most {@link #MAX_ZOOM}
+     * @return the first tile row (TMS) intersecting the bounds
+     */
+    public int getMinRow(final int z) {
+        return ranges[z * 4 + 2];
+    }
+
+    /**
+     * @param z the zoom level, at most {@link #MAX_ZOOM}
+     * @return the last tile row (TMS) intersecting the bounds
+     */
+    public int getMaxRow(final int z) {
+        return ranges[z * 4 + 3];
+    }
+
+    /**
+     * Compute the Web Mercator tile ranges for all zoom levels.
+     *
+     * @return [minColumn, maxColumn, minRow, maxRow] for each zoom level
+     */
+    private int[] computeRanges() {
+        final int[] r = new int[(MAX_ZOOM + 1) * 4];
+        for (int z = 0; z <= MAX_ZOOM; z++) {
+            final int n = 1 << z;
+            r[z * 4] = column(left, n);
+            r[z * 4 + 1] = column(right, n);
+            // TMS rows grow northwards, the top edge has the smallest XYZ row
+            r[z * 4 + 2] = n - 1 - row(bottom, n);
+            r[z * 4 + 3] = n - 1 - row(top, n);
+        }
+        return r;
+    }
+
+    private static int column(final double longitude, final int n) {
+        final double lon = Math.max(-180, Math.min(180, longitude));
+        return clamp((int) Math.floor((lon + 180) / 360 * n), n);
+    }
+
+    private static int row(final double latitude, final int n) {
+        final double lat = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude)));
+        final double y = (1 - Math.log(Math.tan(lat) + 1 / Math.cos(lat)) / Math.PI) / 2;
+        return clamp((int) Math.floor(y * n), n);
+    }
+
+    private static int clamp(final int tile, final int n) {
+        return Math.max(0, Math.min(n - 1, tile));
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.ranges = computeRanges();
     }
 
     @Override
@@ -123,6 +223,15 @@ public class MBTilesBounds implements Serializable {
         return false;
     }
 
+    @Override
+    public int hashCode() {
+        int result = Float.floatToIntBits(left);
+        result = 31 * result + Float.floatToIntBits(bottom);
+        result = 31 * result + Float.floatToIntBits(right);
+        result = 31 * result + Float.floatToIntBits(top);
+        return result;
+    }
+
     /**
      * -180.0,-85,180,85
      *
@@ -0,0 +1,204 @@
+package de.slowpoke.mbtilesmap;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+/**
+ * A two-level cache in front of {@link MBTiles}. Decoded tiles are kept in a
+ * {@link LruCache} of bitmaps, the compressed tile data in a second, usually
+ * larger {@link LruCache}. Both are bounded by their size in bytes.
+ * <p/>
+ * Register the cache with
+ * {@link android.content.Context#registerComponentCallbacks(android.content.ComponentCallbacks)}
+ * to release memory when the system runs low.
+ * <p/>
+ * Missing tiles are remembered in the blob cache as well, so looking up the
+ * same empty area again doesn't hit the database. Call
+ * {@link #remove(int, int, int)} after writing a tile which was missing.
+ * <p/>
+ * Tiles are decoded with the decode options of the {@link MBTiles}. Tiles
+ * served from the cache are shared and must not be returned to a
+ * {@link MBTilesBitmapPool}.
+ *
+ * @author Brian
+ */
+public class MBTilesCache implements ITileSource, ComponentCallbacks2 {
+
+    /**
+     * Marks a tile which is not in the {@link MBTiles}, compared by identity.
+     */
+    private final static byte[] MISSING = new byte[0];
+
+    /**
+     * The size a missing tile is accounted with, roughly the overhead of an
+     * entry, so the misses are bounded as well.
+     */
+    private final static int MISSING_BYTES = 64;
+
+    private final MBTiles tiles;
+    private final LruCache<Long, Bitmap> bitmaps;
+    private final LruCache<Long, byte[]> blobs;
+
+    /**
+     * Create a new cache.
+     *
+     * @param tiles       the tiles to be cached
+     * @param bitmapBytes the maximum size of all decoded tiles in bytes
+     * @param blobBytes   the maximum size of all compressed tiles in bytes
+     */
+    public MBTilesCache(MBTiles tiles, int bitmapBytes, int blobBytes) {
+        this.tiles = tiles;
+        this.bitmaps = new LruCache<Long, Bitmap>(bitmapBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        this.blobs = new LruCache<Long, byte[]>(blobBytes) {
+            @Override
+            protected int sizeOf(Long key, byte[] value) {
+                return (value == MISSING) ? MISSING_BYTES : value.length;
+            }
+        };
+    }
+
+    /**
+     * Get one tile. The decoded tile is served from the bitmap cache, else the
+     * compressed tile is decoded from the blob cache and only if both miss the
+     * tile is read from the {@link MBTiles}.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @return the bitmap of the tile or <code>null</code> if no tile matched
+     * the given parameters
+     */
+    @Override
+    public Bitmap getTile(final int x, final int y, final int z) {
+        final Long key = MBTilesTileKey.pack(x, y, z);
+
+        Bitmap tile = this.bitmaps.get(key);
+        if (tile != null) {
+            return tile;
+        }
+
+        final byte[] data = getTileBytes(x, y, z);
+        if (data == null) {
+            return null;
+        }
+
+        tile = this.tiles.decode(data);
+        if (tile != null) {
+            this.bitmaps.put(key, tile);
+        }
+
+        return tile;
+    }
+
+    /**
+     * Get the data of one tile from the blob cache or, if it misses, from the
+     * {@link MBTiles}. The bitmap cache is not involved. A tile which is not
+     * in the {@link MBTiles} is cached as missing.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @return the tile data or <code>null</code> if no tile matched the given
+     * parameters
+     */
+    @Override
+    public byte[] getTileBytes(final int x, final int y, final int z) {
+        final Long key = MBTilesTileKey.pack(x, y, z);
+
+        byte[] data = this.blobs.get(key);
+        if (data == null) {
+            data = this.tiles.getTileBytes(x, y, z);
+            this.blobs.put(key, (data != null) ? data : MISSING);
+        } else if (data == MISSING) {
+            return null;
+        }
+
+        return data;
+    }
+
+    /**
+     * Remove one tile from both levels, e.g. after it has been overwritten or
+     * written for the first time.
+     *
+     * @param x
+     * @param y
+     * @param z
+     */
+    public void remove(final int x, final int y, final int z) {
+        final Long key = MBTilesTileKey.pack(x, y, z);
+        this.bitmaps.remove(key);
+        this.blobs.remove(key);
+    }
+
+    /**
+     * Remove all tiles from both levels.
+     */
+    public void clear() {
+        this.bitmaps.evictAll();
+        this.blobs.evictAll();
+    }
+
+    /**
+     * @return the cached {@link MBTiles}
+     */
+    public MBTiles getTiles() {
+        return this.tiles;
+    }
+
+    public int getBitmapHitCount() {
+        return this.bitmaps.hitCount();
+    }
+
+    public int getBitmapMissCount() {
+        return this.bitmaps.missCount();
+    }
+
+    public int getBitmapEvictionCount() {
+        return this.bitmaps.evictionCount();
+    }
+
+    public int getBlobHitCount() {
+        return this.blobs.hitCount();
+    }
+
+    public int getBlobMissCount() {
+        return this.blobs.missCount();
+    }
+
+    public int getBlobEvictionCount() {
+        return this.blobs.evictionCount();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            clear();
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            this.bitmaps.evictAll();
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            this.bitmaps.trimToSize(this.bitmaps.maxSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    @Override
+    public String toString() {
+        return "Bitmaps: " + this.bitmaps.toString() + " | Blobs: " + this.blobs.toString();
+    }
+
+}
@@ -0,0 +1,397 @@
+package de.slowpoke.mbtilesmap;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import de.slowpoke.mbtilesmap.MBTilesValidatorFactory.InvalidMetadataException;
+import de.slowpoke.mbtilesmap.MBTilesValidatorFactory.InvalidTilesException;
+import de.slowpoke.mbtilesmap.MBTilesValidatorFactory.UnsupportedVersionException;
+
+/**
+ * Serves tiles from several archives of a {@link MBTilesMap} as if they were
+ * one, e.g. a world overview plus regional archives with higher zoom levels.
+ * <p/>
+ * The bounds and zoom range of every archive are indexed once, from the
+ * metadata the map knows without opening the archives. For every zoom
+ * level the index splits the plane into column slabs and each slab into row
+ * cells, so a tile is routed to the archives which cover it with two binary
+ * searches instead of asking every archive. Where archives overlap, the one
+ * named first is asked first.
+ * <p/>
+ * Every read acquires the archive from the map and releases it again, so
+ * archives may be opened lazily and closed when idle, but never while a tile
+ * is read from them. Call {@link #rebuild()} after archives have been
+ * replaced.
+ *
+ * @author Brian
+ */
+public class MBTilesComposite implements ITileSource {
+
+    /**
+     * A tile which has been found at a lower zoom level than requested.
+     *
+     * @author Brian
+     */
+    public static class Ancestor {
+        public final Bitmap tile;
+        public final int x;
+        public final int y;
+        public final int z;
+
+        Ancestor(Bitmap tile, int x, int y, int z) {
+            this.tile = tile;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+    }
+
+    /**
+     * The routing index of one zoom level.
+     */
+    private static class Level {
+        private static final int[] NONE = new int[0];
+
+        /**
+         * First column of every slab. The last slab covers nothing.
+         */
+        final int[] columns;
+        /**
+         * First row of every cell, per slab.
+         */
+        final int[][] rows;
+        /**
+         * Indexes of the archives covering a cell in the order they are asked,
+         * per slab and cell.
+         */
+        final int[][][] cells;
+
+        Level(int[] columns, int[][] rows, int[][][] cells) {
+            this.columns = columns;
+            this.rows = rows;
+            this.cells = cells;
+        }
+
+        int[] route(final int x, final int y) {
+            final int slab = floor(this.columns, x);
+            if (slab < 0) {
+                return NONE;
+            }
+            final int cell = floor(this.rows[slab], y);
+            return (cell < 0) ? NONE : this.cells[slab][cell];
+        }
+    }
+
+    private final MBTilesMap map;
+    private final String[] names;
+
+    private volatile Level[] levels;
+
+    /**
+     * Create a composite of archives of a map and build its index. Archives
+     * whose zoom range is not known from their metadata are opened briefly to
+     * query it.
+     *
+     * @param map   the map containing the archives
+     * @param names the names of the archives in the order they are asked
+     *              where they overlap, usually the most detailed first
+     */
+    public MBTilesComposite(MBTilesMap map, String... names) {
+        this.map = map;
+        this.names = names.clone();
+        rebuild();
+    }
+
+    /**
+     * Read the bounds and zoom ranges of the archives again. Archives which
+     * can't be opened are left out until the next rebuild.
+     */
+    public void rebuild() {
+        final int count = this.names.length;
+        final int[][] ranges = new int[count][];
+        final MBTilesBounds[] bounds = new MBTilesBounds[count];
+        int minZoom = Integer.MAX_VALUE, maxZoom = -1;
+
+        for (int i = 0; i < count; i++) {
+            final MBTilesMetadata metadata = this.map.getMetadata(this.names[i]);
+            int[] range = zoomRange(metadata);
+            if (range == null) {
+                range = queryZoomRange(this.names[i]);
+            }
+            if (range == null) {
+                continue;
+            }
+
+            final int min = Math.max(0, range[0]);
+            final int max = Math.min(MBTilesBounds.MAX_ZOOM, range[1]);
+            if (max < min) {
+                continue;
+            }
+
+            // the archive has been opened if the metadata was unknown
+            final MBTilesMetadata known = (metadata != null) ? metadata : this.map.getMetadata(this.names[i]);
+            ranges[i] = new int[]{min, max};
+            bounds[i] = (known == null) ? null : known.bounds;
+            minZoom = Math.min(minZoom, min);
+            maxZoom = Math.max(maxZoom, max);
+        }
+
+        final Level[] levels = new Level[maxZoom + 1];
+        for (int z = Math.max(0, minZoom); z <= maxZoom; z++) {
+            levels[z] = buildLevel(z, ranges, bounds);
+        }
+        this.levels = levels;
+    }
+
+    /**
+     * @param metadata
+     * @return the zoom range from the <code>minzoom</code> and
+     * <code>maxzoom</code> entries or the stored statistics, <code>null</code>
+     * if neither is there
+     */
+    private static int[] zoomRange(final MBTilesMetadata metadata) {
+        if (metadata == null) {
+            return null;
+        }
+
+        final int[] range = MBTiles.zoomRangeFromMetadata(metadata);
+        if (range != null) {
+            return range;
+        }
+
+        final MBTilesStatistics stats = MBTilesStatistics.fromMetadata(metadata.extra);
+        return (stats != null && stats.getMinZoom() >= 0) ? new int[]{stats.getMinZoom(), stats.getMaxZoom()}
+                : null;
+    }
+
+    /**
+     * Open an archive just long enough to query its zoom range.
+     *
+     * @param name
+     * @return the zoom range or <code>null</code> if the archive can't be
+     * opened
+     */
+    private int[] queryZoomRange(final String name) {
+        final MBTiles tiles;
+        try {
+            tiles = this.map.acquire(name);
+        } catch (InvalidMetadataException e) {
+            return null;
+        } catch (UnsupportedVersionException e) {
+            return null;
+        } catch (InvalidTilesException e) {
+            return null;
+        }
+        if (tiles == null) {
+            return null;
+        }
+
+        try {
+            return new int[]{tiles.getMinZoom(), tiles.getMaxZoom()};
+        } finally {
+            this.map.release(tiles);
+        }
+    }
+
+    /**
+     * Acquire an archive for one read.
+     *
+     * @param i the index of the archive
+     * @return the archive or <code>null</code> if it can't be opened. It must
+     * be released with {@link MBTilesMap#release(MBTiles)}.
+     */
+    private MBTiles acquire(final int i) {
+        try {
+            return this.map.acquire(this.names[i]);
+        } catch (InvalidMetadataException e) {
+            return null;
+        } catch (UnsupportedVersionException e) {
+            return null;
+        } catch (InvalidTilesException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param z      the zoom level
+     * @param ranges the zoom range of every archive, <code>null</code> for
+     *               archives which are left out
+     * @param bounds the bounds of every archive, <code>null</code> for the
+     *               whole world
+     */
+    private static Level buildLevel(final int z, final int[][] ranges, final MBTilesBounds[] bounds) {
+        // [minColumn, maxColumn, minRow, maxRow] of every archive at this zoom
+        final int[][] extents = new int[ranges.length][];
+        final TreeSet<Integer> columnEdges = new TreeSet<Integer>();
+        final int last = (int) ((1L << z) - 1);
+
+        for (int i = 0; i < ranges.length; i++) {
+            if (ranges[i] == null || z < ranges[i][0] || z > ranges[i][1]) {
+                continue;
+            }
+            final MBTilesBounds b = bounds[i];
+            extents[i] = (b == null) ? new int[]{0, last, 0, last}
+                    : new int[]{b.getMinColumn(z), b.getMaxColumn(z), b.getMinRow(z), b.getMaxRow(z)};
+            columnEdges.add(extents[i][0]);
+            columnEdges.add(extents[i][1] + 1);
+        }
+
+        final int[] columns = toArray(columnEdges);
+        final int[][] rows = new int[columns.length][];
+        final int[][][] cells = new int[columns.length][][];
+
+        for (int s = 0; s < columns.length; s++) {
+            final ArrayList<Integer> covering = new ArrayList<Integer>();
+            final TreeSet<Integer> rowEdges = new TreeSet<Integer>();
+            for (int i = 0; i < extents.length; i++) {
+                if (extents[i] != null && extents[i][0] <= columns[s] && extents[i][1] >= columns[s]) {
+                    covering.add(i);
+                    rowEdges.add(extents[i][2]);
+                    rowEdges.add(extents[i][3] + 1);
+                }
+            }
+
+            rows[s] = toArray(rowEdges);
+            cells[s] = new int[rows[s].length][];
+            for (int c = 0; c < rows[s].length; c++) {
+                final int row = rows[s][c];
+                int n = 0;
+                final int[] cell = new int[covering.size()];
+                for (int i : covering) {
+                    if (extents[i][2] <= row && extents[i][3] >= row) {
+                        cell[n++] = i;
+                    }
+                }
+                cells[s][c] = Arrays.copyOf(cell, n);
+            }
+        }
+
+        return new Level(columns, rows, cells);
+    }
+
+    /**
+     * @return the archives which cover a tile, in the order they are asked
+     */
+    private int[] route(final int x, final int y, final int z) {
+        final Level[] levels = this.levels;
+        if (z < 0 || z >= levels.length || levels[z] == null) {
+            return Level.NONE;
+        }
+        return levels[z].route(x, y);
+    }
+
+    /**
+     * @param x
+     * @param y
+     * @param z
+     * @return the name of the first archive which covers the tile or
+     * <code>null</code>. The tile itself might still be missing.
+     */
+    public String getArchive(final int x, final int y, final int z) {
+        final int[] candidates = route(x, y, z);
+        return (candidates.length == 0) ? null : this.names[candidates[0]];
+    }
+
+    /**
+     * Get one tile from the first archive covering it which has it.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @return the tile or <code>null</code> if no archive has it
+     */
+    @Override
+    public Bitmap getTile(final int x, final int y, final int z) {
+        for (int i : route(x, y, z)) {
+            final MBTiles tiles = acquire(i);
+            if (tiles == null) {
+                continue;
+            }
+            try {
+                final Bitmap tile = tiles.getTile(x, y, z);
+                if (tile != null) {
+                    return tile;
+                }
+            } finally {
+                this.map.release(tiles);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public byte[] getTileBytes(final int x, final int y, final int z) {
+        for (int i : route(x, y, z)) {
+            final MBTiles tiles = acquire(i);
+            if (tiles == null) {
+                continue;
+            }
+            try {
+                final byte[] data = tiles.getTileBytes(x, y, z);
+                if (data != null) {
+                    return data;
+                }
+            } finally {
+                this.map.release(tiles);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get a tile or, if no archive has it, the closest tile at a lower zoom
+     * level which contains it.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @return the tile or an ancestor of it together with its coordinates,
+     * <code>null</code> if there is neither
+     */
+    public Ancestor getTileOrAncestor(final int x, final int y, final int z) {
+        for (int dz = 0; dz <= z; dz++) {
+            final Bitmap tile = getTile(x >> dz, y >> dz, z - dz);
+            if (tile != null) {
+                return new Ancestor(tile, x >> dz, y >> dz, z - dz);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the highest zoom level of all archives as of the last
+     * {@link #rebuild()}, <code>-1</code> if there is none
+     */
+    public int getMaxZoom() {
+        return this.levels.length - 1;
+    }
+
+    /**
+     * @return the names of the archives in the order they are asked
+     */
+    public String[] getArchives() {
+        return this.names.clone();
+    }
+
+    /**
+     * @return the index of the last element which is not greater than the
+     * value, <code>-1</code> if there is none
+     */
+    private static int floor(final int[] sorted, final int value) {
+        final int i = Arrays.binarySearch(sorted, value);
+        return (i >= 0) ? i : -i - 2;
+    }
+
+    private static int[] toArray(TreeSet<Integer> values) {
+        final int[] array = new int[values.size()];
+        int i = 0;
+        for (int value : values) {
+            array[i++] = value;
+        }
+        return array;
+    }
+
+}
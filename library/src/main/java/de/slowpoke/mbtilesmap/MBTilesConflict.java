@@ -0,0 +1,28 @@
+package de.slowpoke.mbtilesmap;
+
+/**
+ * What {@link MBTiles#merge(MBTiles, MBTilesConflict, MBTilesBounds, int, int, int)}
+ * does with a tile which exists in both archives.
+ *
+ * @author Brian
+ */
+public enum MBTilesConflict {
+
+    /**
+     * Keep the tile of the archive file which has been modified last. Tiles
+     * carry no timestamp, so the modification times of the files decide for
+     * all tiles at once.
+     */
+    NEWER_WINS,
+
+    /**
+     * Keep the existing tile.
+     */
+    SKIP,
+
+    /**
+     * Overwrite the existing tile.
+     */
+    REPLACE
+
+}
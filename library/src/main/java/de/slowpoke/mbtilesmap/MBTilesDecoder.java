@@ -0,0 +1,98 @@
+package de.slowpoke.mbtilesmap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * Decodes tiles with the decode options of one {@link MBTiles}. Each thread
+ * reuses its own {@link BitmapFactory.Options} and temporary storage, and if a
+ * {@link MBTilesBitmapPool} is set, a pooled bitmap is decoded into instead of
+ * allocating a new one.
+ *
+ * @author Brian
+ */
+class MBTilesDecoder {
+
+    private final static int TEMP_STORAGE_SIZE = 16 * 1024;
+
+    private final ThreadLocal<BitmapFactory.Options> options = new ThreadLocal<BitmapFactory.Options>() {
+        @Override
+        protected BitmapFactory.Options initialValue() {
+            final BitmapFactory.Options o = new BitmapFactory.Options();
+            o.inTempStorage = new byte[TEMP_STORAGE_SIZE];
+            return o;
+        }
+    };
+
+    private volatile Bitmap.Config config = Bitmap.Config.ARGB_8888;
+    private volatile int sampleSize = 1;
+    private volatile MBTilesBitmapPool pool;
+
+    /**
+     * @param config     the preferred bitmap config
+     * @param sampleSize the sample size, a power of two
+     */
+    void setOptions(final Bitmap.Config config, final int sampleSize) {
+        this.config = config;
+        this.sampleSize = Math.max(1, sampleSize);
+    }
+
+    void setPool(final MBTilesBitmapPool pool) {
+        this.pool = pool;
+    }
+
+    MBTilesBitmapPool getPool() {
+        return this.pool;
+    }
+
+    /**
+     * Decode a tile.
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @return the decoded tile or <code>null</code> if it could not be decoded
+     */
+    Bitmap decode(final byte[] data, final int offset, final int length) {
+        final Bitmap.Config config = this.config;
+        final int sampleSize = this.sampleSize;
+        final MBTilesBitmapPool pool = this.pool;
+
+        final BitmapFactory.Options o = this.options.get();
+        o.inPreferredConfig = config;
+        o.inSampleSize = sampleSize;
+        o.inBitmap = null;
+        o.inMutable = false;
+
+        if (pool != null && canReuse(sampleSize)) {
+            o.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, offset, length, o);
+            o.inJustDecodeBounds = false;
+
+            if (o.outWidth > 0 && o.outHeight > 0) {
+                // the bounds already have the sample size applied
+                o.inBitmap = pool.get(o.outWidth, o.outHeight, config);
+            }
+            o.inMutable = true;
+        }
+
+        try {
+            return BitmapFactory.decodeByteArray(data, offset, length, o);
+        } catch (IllegalArgumentException e) {
+            // the pooled bitmap could not be reused
+            o.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, offset, length, o);
+        } finally {
+            o.inBitmap = null;
+        }
+    }
+
+    /**
+     * Before KitKat bitmaps can only be reused without sampling.
+     */
+    private static boolean canReuse(final int sampleSize) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT || sampleSize == 1;
+    }
+
+}
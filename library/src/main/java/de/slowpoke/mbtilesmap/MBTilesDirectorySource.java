@@ -0,0 +1,79 @@
+package de.slowpoke.mbtilesmap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Serves tiles from a directory tree of <code>z/x/y.ext</code> files, as
+ * written by most tile downloaders and renderers. Usable as the source of a
+ * {@link MBTilesSeeder}.
+ *
+ * @author Brian
+ */
+public class MBTilesDirectorySource implements ITileSource {
+
+    private final File root;
+    private final String extension;
+    private final boolean tms;
+
+    /**
+     * @param root      the directory containing one directory per zoom level
+     * @param extension the file extension of the tiles, e.g. <code>png</code>
+     * @param tms       <code>true</code> if the file names are TMS rows like
+     *                  the rows of {@link MBTiles}, <code>false</code> if they
+     *                  count from the top (XYZ)
+     */
+    public MBTilesDirectorySource(File root, String extension, boolean tms) {
+        this.root = root;
+        this.extension = extension;
+        this.tms = tms;
+    }
+
+    /**
+     * @param x
+     * @param y the TMS row
+     * @param z
+     * @return the file of the tile, which might not exist
+     */
+    public File getFile(final int x, final int y, final int z) {
+        final int row = this.tms ? y : (1 << z) - 1 - y;
+        return new File(this.root, z + File.separator + x + File.separator + row + "." + this.extension);
+    }
+
+    @Override
+    public Bitmap getTile(final int x, final int y, final int z) {
+        final byte[] data = getTileBytes(x, y, z);
+        return (data == null) ? null : BitmapFactory.decodeByteArray(data, 0, data.length);
+    }
+
+    @Override
+    public byte[] getTileBytes(final int x, final int y, final int z) {
+        final File file = getFile(x, y, z);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            final RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                final byte[] data = new byte[(int) in.length()];
+                in.readFully(data);
+                return data;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Tile directory: " + this.root;
+    }
+
+}
@@ -0,0 +1,355 @@
+package de.slowpoke.mbtilesmap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.slowpoke.mbtilesmap.MBTilesMetadata.TileFormat;
+
+/**
+ * Writes tiles to {@link MBTiles} with a pool of encoder threads and a single
+ * writer thread. The encoders compress the submitted bitmaps in parallel while
+ * the writer drains the compressed tiles into the database with a
+ * {@link MBTilesWriter}.
+ * <p/>
+ * At most <code>capacity</code> tiles are in flight at any time;
+ * {@link #submit(Bitmap, int, int, int)} blocks until there is room again.
+ *
+ * @author Brian
+ */
+public class MBTilesIngestPipeline {
+
+    private final static long AWAIT_MILLIS = 500;
+
+    /**
+     * How long the writer waits for the next tile before it commits a
+     * partial batch.
+     */
+    private final static long IDLE_MILLIS = 100;
+
+    private final static EncodedTile END_OF_STREAM = new EncodedTile(null, 0, 0, 0);
+
+    /**
+     * A compressed tile waiting to be written.
+     */
+    private static class EncodedTile {
+        final byte[] data;
+        final int x;
+        final int y;
+        final int z;
+
+        EncodedTile(byte[] data, int x, int y, int z) {
+            this.data = data;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+    }
+
+    private final MBTiles tiles;
+    private final int batchSize;
+    private final Semaphore capacity;
+    private final ExecutorService encoders;
+    private final BlockingQueue<EncodedTile> encoded;
+    private final Thread writerThread;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicReference<RuntimeException> error = new AtomicReference<RuntimeException>();
+
+    private volatile boolean closed;
+
+    /**
+     * Create a new pipeline and start its threads.
+     *
+     * @param tiles     the tiles to write to
+     * @param encoders  the number of encoder threads
+     * @param capacity  the maximum number of tiles which have been submitted
+     *                  but not yet written
+     * @param batchSize the number of tiles per transaction
+     */
+    public MBTilesIngestPipeline(MBTiles tiles, int encoders, int capacity, int batchSize) {
+        if (encoders < 1 || capacity < 1) {
+            throw new IllegalArgumentException("encoders and capacity must be at least 1");
+        }
+
+        this.tiles = tiles;
+        this.batchSize = batchSize;
+        this.capacity = new Semaphore(capacity);
+        this.encoded = new LinkedBlockingQueue<EncodedTile>();
+        this.encoders = new ThreadPoolExecutor(encoders, encoders, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory("MBTiles-encoder-"));
+
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "MBTiles-writer");
+        this.writerThread.start();
+    }
+
+    /**
+     * Submit a tile compressed with the format of the {@link MBTilesMetadata}
+     * and the {@link MBTiles#getQuality() quality} of the {@link MBTiles}.
+     *
+     * @param tile
+     * @param x
+     * @param y
+     * @param z
+     * @throws InterruptedException if interrupted while waiting for capacity
+     */
+    public void submit(final Bitmap tile, final int x, final int y, final int z) throws InterruptedException {
+        submit(tile, x, y, z, this.tiles.getMetadata().format, this.tiles.getQuality());
+    }
+
+    /**
+     * Submit a tile. Blocks while the pipeline is full.
+     *
+     * @param tile
+     * @param x
+     * @param y
+     * @param z
+     * @param format  the image format of this tile
+     * @param quality the compression quality of this tile
+     * @throws InterruptedException if interrupted while waiting for capacity
+     */
+    public void submit(final Bitmap tile, final int x, final int y, final int z, final TileFormat format,
+                       final int quality) throws InterruptedException {
+        checkOpen();
+        this.capacity.acquire();
+
+        this.encoders.execute(new Runnable() {
+            @Override
+            public void run() {
+                byte[] data = null;
+                try {
+                    data = MBTiles.compress(tile, format, quality);
+                } catch (RuntimeException ignore) {
+                }
+
+                if (data == null) {
+                    MBTilesIngestPipeline.this.failed.incrementAndGet();
+                    MBTilesIngestPipeline.this.capacity.release();
+                } else {
+                    MBTilesIngestPipeline.this.encoded.add(new EncodedTile(data, x, y, z));
+                }
+            }
+        });
+    }
+
+    /**
+     * Submit compressed tile data to be converted to another format. The
+     * encoders decode and compress it again. Blocks while the pipeline is
+     * full.
+     *
+     * @param data    the compressed tile
+     * @param x
+     * @param y
+     * @param z
+     * @param format  the new image format of this tile
+     * @param quality the compression quality of this tile
+     * @throws InterruptedException if interrupted while waiting for capacity
+     */
+    public void submitReencode(final byte[] data, final int x, final int y, final int z, final TileFormat format,
+                               final int quality) throws InterruptedException {
+        checkOpen();
+        this.capacity.acquire();
+
+        this.encoders.execute(new Runnable() {
+            @Override
+            public void run() {
+                byte[] encoded = null;
+                try {
+                    final Bitmap tile = BitmapFactory.decodeByteArray(data, 0, data.length);
+                    if (tile != null) {
+                        encoded = MBTiles.compress(tile, format, quality);
+                        tile.recycle();
+                    }
+                } catch (RuntimeException ignore) {
+                }
+
+                if (encoded == null) {
+                    MBTilesIngestPipeline.this.failed.incrementAndGet();
+                    MBTilesIngestPipeline.this.capacity.release();
+                } else {
+                    MBTilesIngestPipeline.this.encoded.add(new EncodedTile(encoded, x, y, z));
+                }
+            }
+        });
+    }
+
+    /**
+     * Submit an already compressed tile. It skips the encoders and is handed
+     * to the writer as it is. Blocks while the pipeline is full.
+     *
+     * @param data
+     * @param x
+     * @param y
+     * @param z
+     * @throws InterruptedException if interrupted while waiting for capacity
+     */
+    public void submitBytes(final byte[] data, final int x, final int y, final int z) throws InterruptedException {
+        checkOpen();
+        this.capacity.acquire();
+        this.encoded.add(new EncodedTile(data, x, y, z));
+    }
+
+    /**
+     * Wait until all submitted tiles have been written, commit and stop the
+     * threads.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     * @throws android.database.SQLException if the writer failed
+     */
+    public void close() throws InterruptedException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+
+        this.encoders.shutdown();
+        while (!this.encoders.awaitTermination(AWAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+            // keep waiting for the encoders
+        }
+
+        this.encoded.add(END_OF_STREAM);
+        this.writerThread.join();
+
+        final RuntimeException e = this.error.get();
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of tiles written to the database
+     */
+    public long getWrittenCount() {
+        return this.written.get();
+    }
+
+    /**
+     * @return the number of compressed bytes written to the database
+     */
+    public long getByteCount() {
+        return this.bytes.get();
+    }
+
+    /**
+     * @return the number of tiles which could not be compressed or written
+     */
+    public long getFailedCount() {
+        return this.failed.get();
+    }
+
+    /**
+     * Writer loop. The {@link MBTilesWriter} commits whenever a batch is full.
+     * A partial batch is only committed once no tile has arrived for
+     * {@link #IDLE_MILLIS}, so no transaction is kept open while the writer
+     * waits for tiles, but a queue which is briefly empty between tiles
+     * doesn't cost a transaction per tile.
+     */
+    private void drain() {
+        MBTilesWriter writer = null;
+        try {
+            writer = this.tiles.openWriter(this.batchSize);
+
+            while (true) {
+                EncodedTile tile = this.encoded.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                if (tile == null) {
+                    writer.commit();
+                    tile = this.encoded.take();
+                }
+
+                if (tile == END_OF_STREAM) {
+                    break;
+                }
+
+                write(writer, tile);
+            }
+
+            writer.close();
+        } catch (RuntimeException e) {
+            this.error.compareAndSet(null, e);
+            if (writer != null) {
+                writer.abort();
+            }
+            releaseAll();
+        } catch (InterruptedException e) {
+            if (writer != null) {
+                writer.close();
+            }
+            releaseAll();
+        }
+    }
+
+    private void write(final MBTilesWriter writer, final EncodedTile tile) {
+        try {
+            if (writer.setTileBytes(tile.data, tile.x, tile.y, tile.z)) {
+                this.written.incrementAndGet();
+                this.bytes.addAndGet(tile.data.length);
+            } else {
+                this.failed.incrementAndGet();
+            }
+        } finally {
+            this.capacity.release();
+        }
+    }
+
+    /**
+     * Unblock producers after the writer has stopped.
+     */
+    private void releaseAll() {
+        EncodedTile tile;
+        while ((tile = this.encoded.poll()) != null) {
+            if (tile != END_OF_STREAM) {
+                this.failed.incrementAndGet();
+                this.capacity.release();
+            }
+        }
+        this.capacity.release(Integer.MAX_VALUE / 2);
+    }
+
+    private void checkOpen() {
+        final RuntimeException e = this.error.get();
+        if (this.closed || e != null) {
+            throw new IllegalStateException("Pipeline has been closed", e);
+        }
+    }
+
+    /**
+     * Creates the background threads for the encoders and other workers.
+     */
+    static class WorkerThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        /**
+         * @param prefix the thread names, followed by a number
+         */
+        WorkerThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, this.prefix + this.count.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,32 @@
+package de.slowpoke.mbtilesmap;
+
+/**
+ * Ways to store the tiles of {@link MBTiles}. Either way the tiles can be
+ * read from the <code>tiles</code> table or view.
+ *
+ * @author Brian
+ */
+public enum MBTilesLayout {
+
+    /**
+     * One <code>tiles</code> table holding the coordinates and the data of
+     * every tile.
+     */
+    FLAT,
+
+    /**
+     * A <code>map</code> table from the coordinates to the id of an image and
+     * an <code>images</code> table holding every distinct image once, keyed by
+     * a hash of its content. The <code>tiles</code> view joins both.
+     */
+    DEDUPLICATED,
+
+    /**
+     * A <code>tiles_clustered</code> table whose rows are ordered by
+     * {@link MBTilesTileKey#hilbert(int, int, int)}, so neighbouring tiles
+     * share data pages. The <code>tiles</code> view selects the standard
+     * columns from it.
+     */
+    CLUSTERED
+
+}
@@ -0,0 +1,336 @@
+package de.slowpoke.mbtilesmap;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads tiles asynchronously on a bounded pool of worker threads. Requests are
+ * served by priority, then in the order they have been made. Cancelled
+ * requests are removed from the queue right away.
+ *
+ * @author Brian
+ */
+public class MBTilesLoader {
+
+    /**
+     * Priority of tiles which are visible right now.
+     */
+    public final static int PRIORITY_VISIBLE = 0;
+
+    /**
+     * Priority of tiles on the current zoom level which are not visible yet.
+     */
+    public final static int PRIORITY_CURRENT_ZOOM = 1;
+
+    /**
+     * Priority of tiles which might be needed later.
+     */
+    public final static int PRIORITY_PREFETCH = 2;
+
+    /**
+     * Receives the tiles of asynchronous requests. Called on a worker thread.
+     * Exceptions thrown by the callback are not caught, they reach the
+     * uncaught exception handler of the worker thread.
+     *
+     * @author Brian
+     */
+    public static interface Callback {
+
+        /**
+         * @param tile the loaded tile or <code>null</code> if no tile matched
+         * @param x
+         * @param y
+         * @param z
+         */
+        void onTileLoaded(Bitmap tile, int x, int y, int z);
+    }
+
+    /**
+     * A queued tile request. Cancel it once the tile isn't needed anymore.
+     *
+     * @author Brian
+     */
+    public class TileRequest extends FutureTask<Bitmap> implements Comparable<TileRequest> {
+
+        public final int x;
+        public final int y;
+        public final int z;
+        public final int priority;
+
+        private final long sequence;
+        private final long enqueued;
+        private final long deadline;
+        private final Callback callback;
+
+        TileRequest(final int x, final int y, final int z, final int priority, final Callback callback,
+                    final long deadline) {
+            super(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() throws Exception {
+                    return MBTilesLoader.this.source.getTile(x, y, z);
+                }
+            });
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.priority = priority;
+            this.callback = callback;
+            this.deadline = deadline;
+            this.sequence = MBTilesLoader.this.sequence.getAndIncrement();
+            this.enqueued = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void run() {
+            final long now = SystemClock.elapsedRealtime();
+            if (this.deadline > 0 && now > this.deadline) {
+                cancel(false);
+                return;
+            }
+            MBTilesLoader.this.waitMillis.addAndGet(now - this.enqueued);
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                MBTilesLoader.this.cancelled.incrementAndGet();
+                return;
+            }
+
+            MBTilesLoader.this.completed.incrementAndGet();
+            MBTilesLoader.this.latencyMillis.addAndGet(SystemClock.elapsedRealtime() - this.enqueued);
+
+            if (this.callback == null) {
+                return;
+            }
+
+            final Bitmap tile;
+            try {
+                tile = get();
+            } catch (ExecutionException e) {
+                // the request failed, there is no tile to deliver
+                return;
+            } catch (CancellationException e) {
+                return;
+            } catch (InterruptedException e) {
+                // can't happen, the request is done
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            this.callback.onTileLoaded(tile, this.x, this.y, this.z);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                MBTilesLoader.this.executor.remove(this);
+            }
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(TileRequest another) {
+            if (this.priority != another.priority) {
+                return this.priority < another.priority ? -1 : 1;
+            }
+            return this.sequence < another.sequence ? -1 : (this.sequence == another.sequence ? 0 : 1);
+        }
+    }
+
+    private final ITileSource source;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong latencyMillis = new AtomicLong();
+    private final AtomicLong waitMillis = new AtomicLong();
+
+    /**
+     * Create a new loader and start its worker threads.
+     *
+     * @param source  the source to load the tiles from, e.g. {@link MBTiles}
+     *                or {@link MBTilesCache}
+     * @param threads the number of worker threads
+     */
+    public MBTilesLoader(ITileSource source, int threads) {
+        this.source = source;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new LoaderThreadFactory());
+        this.executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * Request a tile.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @param priority one of {@link #PRIORITY_VISIBLE},
+     *                 {@link #PRIORITY_CURRENT_ZOOM} or
+     *                 {@link #PRIORITY_PREFETCH}, lower values are served
+     *                 first
+     * @param callback receives the tile, might be <code>null</code>
+     * @return the queued request
+     */
+    public TileRequest load(final int x, final int y, final int z, final int priority, final Callback callback) {
+        return load(x, y, z, priority, callback, 0);
+    }
+
+    /**
+     * Request a tile which is only worth loading until a deadline. If no
+     * worker has picked the request up by then, it is cancelled.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @param priority
+     * @param callback receives the tile, might be <code>null</code>
+     * @param deadline the deadline in {@link SystemClock#elapsedRealtime()}
+     *                 time, <code>0</code> for none
+     * @return the queued request
+     * @see #load(int, int, int, int, Callback)
+     */
+    public TileRequest load(final int x, final int y, final int z, final int priority, final Callback callback,
+                            final long deadline) {
+        final TileRequest request = new TileRequest(x, y, z, priority, callback, deadline);
+        this.executor.execute(request);
+        return request;
+    }
+
+    /**
+     * Request a tile without callback.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @param priority
+     * @return the queued request, to be used as a {@link java.util.concurrent.Future}
+     * @see #load(int, int, int, int, Callback)
+     */
+    public TileRequest load(final int x, final int y, final int z, final int priority) {
+        return load(x, y, z, priority, null);
+    }
+
+    /**
+     * Cancel all queued requests for tiles which are not within the given
+     * range, e.g. after the user has panned away.
+     *
+     * @param z    the zoom level to keep
+     * @param minX the first column to keep
+     * @param minY the first row to keep
+     * @param maxX the last column to keep (inclusive)
+     * @param maxY the last row to keep (inclusive)
+     * @return the number of cancelled requests
+     */
+    public int cancelOutside(final int z, final int minX, final int minY, final int maxX, final int maxY) {
+        int count = 0;
+        for (Object queued : this.executor.getQueue().toArray()) {
+            final TileRequest r = (TileRequest) queued;
+            if (r.z != z || r.x < minX || r.x > maxX || r.y < minY || r.y > maxY) {
+                if (r.cancel(false)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Cancel all queued requests.
+     *
+     * @return the number of cancelled requests
+     */
+    public int cancelAll() {
+        int count = 0;
+        for (Object queued : this.executor.getQueue().toArray()) {
+            if (((TileRequest) queued).cancel(false)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Cancel all requests and stop the worker threads.
+     */
+    public void shutdown() {
+        cancelAll();
+        this.executor.shutdown();
+    }
+
+    /**
+     * @return the number of requests waiting for a worker
+     */
+    public int getQueueDepth() {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of requests currently being loaded
+     */
+    public int getActiveCount() {
+        return this.executor.getActiveCount();
+    }
+
+    public long getCompletedCount() {
+        return this.completed.get();
+    }
+
+    public long getCancelledCount() {
+        return this.cancelled.get();
+    }
+
+    /**
+     * @return the average time from request to completion in milliseconds
+     */
+    public double getAverageLatencyMillis() {
+        final long count = this.completed.get();
+        return count > 0 ? (double) this.latencyMillis.get() / count : 0;
+    }
+
+    /**
+     * @return the average time requests waited in the queue in milliseconds
+     */
+    public double getAverageWaitMillis() {
+        final long count = this.completed.get();
+        return count > 0 ? (double) this.waitMillis.get() / count : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "Queued: " + getQueueDepth() + " | Active: " + getActiveCount() + " | Completed: "
+                + getCompletedCount() + " | Cancelled: " + getCancelledCount() + " | Latency: "
+                + getAverageLatencyMillis() + "ms";
+    }
+
+    /**
+     * Creates the background threads for the workers.
+     */
+    private static class LoaderThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "MBTiles-loader-" + this.count.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+
+}
@@ -5,9 +5,20 @@ package de.slowpoke.mbtilesmap;
 
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
 
 import java.io.File;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import de.slowpoke.mbtilesmap.MBTilesMetadata.LayerType;
 import de.slowpoke.mbtilesmap.MBTilesValidatorFactory.InvalidMetadataException;
@@ -17,15 +28,96 @@ import de.slowpoke.mbtilesmap.MBTilesValidatorFactory.TilesValidator;
 import de.slowpoke.mbtilesmap.MBTilesValidatorFactory.UnsupportedVersionException;
 
 /**
- * A map which maintains access to your {@link MBTiles}.
+ * A map which maintains access to your {@link MBTiles}. It is safe to use
+ * from several threads at once.
+ * <p/>
+ * Archives can be {@link #register(String, File, MBTilesVersion) registered}
+ * without opening them; they are opened on first access. While an archive is
+ * {@link #acquire(String) acquired} it stays open. Archives which are not
+ * acquired may be closed when more than {@link #setMaxOpen(int)} archives are
+ * open or when they have been idle for {@link #setIdleTimeout(long)}, and
+ * are opened again on the next access. An acquired archive is never closed
+ * under its users: if it is replaced or removed meanwhile, it is closed once
+ * the last of them has released it. Archives returned by the methods which
+ * open or add an archive are acquired as well.
+ * <p/>
+ * {@link #close() Close} the map once it isn't needed anymore, to stop its
+ * background threads.
+ * <p/>
+ * Unlike earlier versions this class is not a {@link java.util.HashMap}
+ * anymore; it only offers the map methods which make sense for archives
+ * opened on demand.
  *
  * @author Brian
  */
-public class MBTilesMap extends HashMap<String, MBTiles> {
+public class MBTilesMap {
 
-    private static final long serialVersionUID = -5959556653700563754L;
+    /**
+     * Number of read-only connections opened per archive if it is opened
+     * read-only or write-ahead logging is not available.
+     */
+    public static final int DEFAULT_READ_CONNECTIONS = 4;
+
+    private static final String VALIDATION_CACHE_FILE = "mbtiles-validation.cache";
+
+    /**
+     * An archive of the map, which might currently be closed.
+     */
+    private static class Archive {
+        final File path;
+        final MBTilesVersion version;
+        final int readConnections;
+        final MBTilesTuning tuning;
+
+        MBTilesMetadata metadata;
+        MBTiles tiles;
+        int refs;
+        long lastUsed;
+
+        /**
+         * The name it was added with, to release it after it has been
+         * removed from the map.
+         */
+        String name;
+
+        /**
+         * Close the archive as soon as the last reference is released.
+         */
+        boolean closePending;
+
+        /**
+         * Holds a reference on behalf of the callers of {@link #get(String)}
+         * until the archive is removed or replaced.
+         */
+        boolean pinned;
+
+        Archive(File path, MBTilesVersion version, int readConnections, MBTilesTuning tuning) {
+            this.path = path;
+            this.version = version;
+            this.readConnections = readConnections;
+            this.tuning = tuning;
+        }
+
+        boolean isReadOnly() {
+            return this.tuning != null;
+        }
+    }
 
     private final Context context;
+    private final ConcurrentHashMap<String, Archive> archives = new ConcurrentHashMap<String, Archive>();
+
+    /**
+     * Archives which have been replaced or removed while they were acquired.
+     */
+    private final List<Archive> retired = new CopyOnWriteArrayList<Archive>();
+
+    private volatile int maxOpen = Integer.MAX_VALUE;
+    private volatile long idleTimeout;
+    private ScheduledExecutorService sweeper;
+
+    private volatile MBTilesValidationCache validationCache;
+    private volatile boolean validateInBackground;
+    private ExecutorService validator;
 
     /**
      * Create a new {@link MBTiles} table.
@@ -33,7 +125,6 @@ public class MBTilesMap extends HashMap<String, MBTiles> {
      * @param ctx Context
      */
     public MBTilesMap(Context ctx) {
-        super();
         this.context = ctx;
     }
 
@@ -45,7 +136,8 @@ public class MBTilesMap extends HashMap<String, MBTiles> {
      * @param dbpath  the absolute path to the file. The file will be opened as an
      *                {@link SQLiteDatabase} and the contents will be validated
      * @param version the version of the {@link MBTiles}
-     * @return the newly opened {@link MBTiles} which has been added to the map,
+     * @return the newly opened {@link MBTiles} which has been added to the map
+     * and is acquired, so it must be {@link #release(MBTiles) released}, or
      * <code>null</code> if the {@link MBTiles} could not be opened
      * @throws UnsupportedVersionException If the supplied <code>version</code> is not (yet) supported
      * @throws InvalidMetadataException    If the metadata table doesn't meet the constraints as defined
@@ -55,21 +147,474 @@ public class MBTilesMap extends HashMap<String, MBTiles> {
      */
     public MBTiles open(String name, File dbpath, MBTilesVersion version) throws InvalidMetadataException,
             UnsupportedVersionException, InvalidTilesException {
-        final SQLiteDatabase database = SQLiteDatabase.openDatabase(dbpath.getAbsolutePath(), null,
-                SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        return open(name, dbpath, version, DEFAULT_READ_CONNECTIONS);
+    }
+
+    /**
+     * Open an existing {@link MBTiles} file and add it to the map. The file is
+     * switched to write-ahead logging so readers don't wait for each other or
+     * for writers. If that is not possible, additional read-only connections
+     * are opened instead.
+     *
+     * @param name            the name. If there is already an entry with that
+     *                        name, it will be closed and replaced
+     * @param dbpath          the absolute path to the file
+     * @param version         the version of the {@link MBTiles}
+     * @param readConnections the number of read-only connections to open if
+     *                        write-ahead logging is not available
+     * @return the newly opened {@link MBTiles} which has been added to the map
+     * and is acquired, so it must be {@link #release(MBTiles) released}, or
+     * <code>null</code> if the {@link MBTiles} could not be opened
+     * @throws UnsupportedVersionException If the supplied <code>version</code> is not (yet) supported
+     * @throws InvalidMetadataException    If the metadata table doesn't meet the constraints as defined
+     *                                     by the specifications
+     * @throws InvalidTilesException       If the tiles table doesn't meet the constraints as defined by
+     *                                     the specifications
+     * @see #open(String, File, MBTilesVersion)
+     */
+    public MBTiles open(String name, File dbpath, MBTilesVersion version, int readConnections)
+            throws InvalidMetadataException, UnsupportedVersionException, InvalidTilesException {
+        return open(name, new Archive(dbpath, version, readConnections, null));
+    }
+
+    /**
+     * Open an existing {@link MBTiles} file read-only and add it to the map.
+     * Every connection is set up with the given tuning, and reads are spread
+     * over <code>readConnections</code> connections. The file is never
+     * modified, so it may live on read-only storage; it may not be written
+     * to by anyone else while it is open.
+     *
+     * @param name            the name. If there is already an entry with that
+     *                        name, it will be closed and replaced
+     * @param dbpath          the absolute path to the file
+     * @param version         the version of the {@link MBTiles}
+     * @param readConnections the number of connections to read from
+     * @param tuning          the SQLite settings of the connections, e.g.
+     *                        {@link MBTilesTuning#READ_ONLY}
+     * @return the newly opened {@link MBTiles} which has been added to the map
+     * and is acquired, so it must be {@link #release(MBTiles) released}, or
+     * <code>null</code> if the {@link MBTiles} could not be opened
+     * @throws UnsupportedVersionException If the supplied <code>version</code> is not (yet) supported
+     * @throws InvalidMetadataException    If the metadata table doesn't meet the constraints as defined
+     *                                     by the specifications
+     * @throws InvalidTilesException       If the tiles table doesn't meet the constraints as defined by
+     *                                     the specifications
+     */
+    public MBTiles openReadOnly(String name, File dbpath, MBTilesVersion version, int readConnections,
+                                MBTilesTuning tuning) throws InvalidMetadataException, UnsupportedVersionException,
+            InvalidTilesException {
+        return open(name, new Archive(dbpath, version, readConnections, tuning));
+    }
+
+    private MBTiles open(String name, Archive archive) throws InvalidMetadataException,
+            UnsupportedVersionException, InvalidTilesException {
+        final MBTiles tiles;
+        synchronized (archive) {
+            tiles = openArchive(archive);
+            if (tiles == null) {
+                return null;
+            }
+            archive.refs++;
+        }
+
+        replace(name, archive);
+        enforceMaxOpen(archive);
+        return tiles;
+    }
+
+    /**
+     * Add an existing {@link MBTiles} file to the map without opening it. It
+     * will be opened and validated on first access.
+     *
+     * @param name    the name. If there is already an entry with that name, it
+     *                will be closed and replaced
+     * @param dbpath  the absolute path to the file
+     * @param version the version of the {@link MBTiles}
+     */
+    public void register(String name, File dbpath, MBTilesVersion version) {
+        replace(name, new Archive(dbpath, version, DEFAULT_READ_CONNECTIONS, null));
+    }
+
+    /**
+     * Add an existing {@link MBTiles} file to the map without opening it. It
+     * will be opened read-only on first access.
+     *
+     * @param name    the name. If there is already an entry with that name, it
+     *                will be closed and replaced
+     * @param dbpath  the absolute path to the file
+     * @param version the version of the {@link MBTiles}
+     * @param tuning  the SQLite settings of the connections
+     * @see #openReadOnly(String, File, MBTilesVersion, int, MBTilesTuning)
+     */
+    public void registerReadOnly(String name, File dbpath, MBTilesVersion version, MBTilesTuning tuning) {
+        replace(name, new Archive(dbpath, version, DEFAULT_READ_CONNECTIONS, tuning));
+    }
+
+    /**
+     * Get an {@link MBTiles} and keep it open until it is
+     * {@link #release(String) released}. Opens the archive if necessary.
+     *
+     * @param name
+     * @return the {@link MBTiles} or <code>null</code> if there is no archive
+     * with that name, it could not be opened or it is about to be closed
+     * @throws UnsupportedVersionException If the version of the archive is not (yet) supported
+     * @throws InvalidMetadataException    If the metadata table doesn't meet the constraints as defined
+     *                                     by the specifications
+     * @throws InvalidTilesException       If the tiles table doesn't meet the constraints as defined by
+     *                                     the specifications
+     */
+    public MBTiles acquire(String name) throws InvalidMetadataException, UnsupportedVersionException,
+            InvalidTilesException {
+        final Archive archive = this.archives.get(name);
+        if (archive == null) {
+            return null;
+        }
 
-        final MetadataValidator mValidator = MBTilesValidatorFactory.getMetadataValidator(version);
-        final TilesValidator tValidator = MBTilesValidatorFactory.getTilesValidtor(version);
+        final MBTiles tiles;
+        synchronized (archive) {
+            if (archive.closePending) {
+                return null;
+            }
+            tiles = openArchive(archive);
+            if (tiles == null) {
+                return null;
+            }
+            archive.refs++;
+            archive.lastUsed = SystemClock.elapsedRealtime();
+        }
+
+        enforceMaxOpen(archive);
+        return tiles;
+    }
+
+    /**
+     * Release an {@link MBTiles} which has been acquired before. Once it is
+     * not acquired anymore, it may be closed. If the archive has been
+     * replaced or removed since, the acquired instance is released.
+     *
+     * @param name
+     * @see #release(MBTiles)
+     */
+    public void release(String name) {
+        for (Archive archive : this.retired) {
+            if (name.equals(archive.name) && release(archive)) {
+                return;
+            }
+        }
+
+        final Archive archive = this.archives.get(name);
+        if (archive != null) {
+            release(archive);
+        }
+    }
+
+    /**
+     * Release exactly the {@link MBTiles} which has been returned by
+     * {@link #acquire(String)}, even if there is another archive with that
+     * name by now.
+     *
+     * @param tiles
+     */
+    public void release(MBTiles tiles) {
+        for (Archive archive : this.retired) {
+            if (archive.tiles == tiles && release(archive)) {
+                return;
+            }
+        }
+
+        for (Archive archive : this.archives.values()) {
+            if (archive.tiles == tiles && release(archive)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drop one reference of an archive and close it if that was the last one
+     * and it is about to be closed.
+     *
+     * @param archive
+     * @return <code>false</code> if the archive was not acquired
+     */
+    private boolean release(Archive archive) {
+        synchronized (archive) {
+            if (archive.refs == 0) {
+                return false;
+            }
+            archive.lastUsed = SystemClock.elapsedRealtime();
+            if (--archive.refs > 0 || !archive.closePending) {
+                return true;
+            }
+            closeNow(archive);
+        }
+
+        this.retired.remove(archive);
+        return true;
+    }
+
+    /**
+     * Open and validate the file of an archive unless it is already open. Must
+     * be called while holding the lock of the archive.
+     *
+     * @param archive
+     * @return the open {@link MBTiles} or <code>null</code> if it could not be
+     * opened
+     */
+    private MBTiles openArchive(Archive archive) throws InvalidMetadataException, UnsupportedVersionException,
+            InvalidTilesException {
+        if (archive.tiles != null) {
+            return archive.tiles;
+        }
+
+        final MBTilesValidationCache cache = this.validationCache;
+        final MBTilesMetadata cached = (cache == null) ? null : cache.get(archive.path);
 
-        if (mValidator.validate(database) && tValidator.validate(database)) {
-            final MBTiles mbTiles = new MBTiles(database, mValidator.getMetadata(), version);
-            put(name, mbTiles);
-            return get(name);
+        final SQLiteDatabase database = SQLiteDatabase.openDatabase(archive.path.getAbsolutePath(), null,
+                (archive.isReadOnly() ? SQLiteDatabase.OPEN_READONLY : SQLiteDatabase.OPEN_READWRITE)
+                        | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        if (archive.isReadOnly()) {
+            try {
+                archive.tuning.apply(database);
+            } catch (RuntimeException e) {
+                database.close();
+                throw e;
+            }
+        }
+
+        final MBTilesMetadata metadata;
+        final boolean fastOpen = cached != null && cache.checkSchema(archive.path, database);
+        if (fastOpen) {
+            metadata = cached;
+        } else {
+            metadata = validate(database, archive.version);
+            if (metadata == null) {
+                database.close();
+                return null;
+            }
+        }
+
+        final SQLiteDatabase[] readers;
+        try {
+            if (archive.isReadOnly()) {
+                // the main connection is one of the readers
+                readers = openReaders(archive.path, database, Math.max(1, archive.readConnections),
+                        archive.tuning);
+            } else {
+                readers = database.enableWriteAheadLogging() ? null
+                        : openReaders(archive.path, null, archive.readConnections, null);
+            }
+        } catch (RuntimeException e) {
+            database.close();
+            throw e;
+        }
+
+        // switching the journal mode changes the file, so it is recorded after
+        if (!fastOpen && cache != null) {
+            cache.put(archive.path, database, metadata);
+        }
+
+        archive.tiles = new MBTiles(database, readers, metadata, archive.version);
+        archive.metadata = archive.tiles.getMetadata();
+        archive.lastUsed = SystemClock.elapsedRealtime();
+
+        if (fastOpen && this.validateInBackground) {
+            validateLater(archive, archive.tiles);
+        }
+
+        return archive.tiles;
+    }
+
+    /**
+     * Run the validators of a version on a database.
+     *
+     * @param database
+     * @param version
+     * @return the validated metadata or <code>null</code> if the database is
+     * not valid. The database is closed if validation fails.
+     */
+    private static MBTilesMetadata validate(SQLiteDatabase database, MBTilesVersion version)
+            throws InvalidMetadataException, UnsupportedVersionException, InvalidTilesException {
+        try {
+            final MetadataValidator mValidator = MBTilesValidatorFactory.getMetadataValidator(version);
+            final TilesValidator tValidator = MBTilesValidatorFactory.getTilesValidtor(version);
+
+            if (mValidator.validate(database) && tValidator.validate(database)) {
+                return mValidator.getMetadata();
+            }
+        } catch (UnsupportedVersionException e) {
+            database.close();
+            throw e;
+        } catch (InvalidMetadataException e) {
+            database.close();
+            throw e;
+        } catch (InvalidTilesException e) {
+            database.close();
+            throw e;
         }
 
         return null;
     }
 
+    /**
+     * Fully validate an archive which has been opened from the validation
+     * cache. If it turns out to be invalid, it is dropped from the cache and
+     * closed; the next access validates it again and reports the error.
+     *
+     * @param archive
+     * @param tiles   the instance which has been opened
+     */
+    private void validateLater(final Archive archive, final MBTiles tiles) {
+        final ExecutorService executor;
+        synchronized (this) {
+            if (this.validator == null) {
+                this.validator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r, "MBTiles-validator");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+            }
+            executor = this.validator;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean valid;
+                SQLiteDatabase database = null;
+                try {
+                    database = SQLiteDatabase.openDatabase(archive.path.getAbsolutePath(), null,
+                            SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+                    valid = validate(database, archive.version) != null;
+                } catch (Exception e) {
+                    valid = false;
+                } finally {
+                    if (database != null && database.isOpen()) {
+                        database.close();
+                    }
+                }
+
+                if (!valid) {
+                    final MBTilesValidationCache cache = MBTilesMap.this.validationCache;
+                    if (cache != null) {
+                        cache.remove(archive.path);
+                    }
+                    synchronized (archive) {
+                        if (archive.tiles == tiles) {
+                            unpin(archive);
+                            close(archive);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Open archives which have been validated before with a cheap check of
+     * their file and schema instead of a full validation.
+     *
+     * @param cache                the validation cache or <code>null</code>
+     *                             to always validate fully
+     * @param validateInBackground <code>true</code> to still validate such
+     *                             archives fully, in the background after
+     *                             they have been opened
+     */
+    public void setValidationCache(MBTilesValidationCache cache, boolean validateInBackground) {
+        this.validationCache = cache;
+        this.validateInBackground = validateInBackground;
+    }
+
+    /**
+     * Use a validation cache kept in the cache directory of the context.
+     *
+     * @param validateInBackground
+     * @return the validation cache
+     * @see #setValidationCache(MBTilesValidationCache, boolean)
+     */
+    public MBTilesValidationCache enableValidationCache(boolean validateInBackground) {
+        final MBTilesValidationCache cache = new MBTilesValidationCache(
+                new File(this.context.getCacheDir(), VALIDATION_CACHE_FILE));
+        setValidationCache(cache, validateInBackground);
+        return cache;
+    }
+
+    /**
+     * Close an archive unless it is acquired.
+     *
+     * @param archive
+     * @return <code>true</code> if the archive has been closed
+     */
+    private boolean closeIfUnused(Archive archive) {
+        synchronized (archive) {
+            if (archive.refs > 0 || archive.tiles == null) {
+                return false;
+            }
+            closeTiles(archive);
+            return true;
+        }
+    }
+
+    /**
+     * Close the open {@link MBTiles} of an archive and update its entry in
+     * the validation cache, as closing changes the file. Must be called while
+     * holding the lock of the archive.
+     *
+     * @param archive
+     */
+    private void closeTiles(Archive archive) {
+        final MBTiles tiles = archive.tiles;
+        archive.tiles = null;
+        tiles.close();
+
+        final MBTilesValidationCache cache = this.validationCache;
+        if (cache != null) {
+            cache.refresh(archive.path, tiles.getMetadata());
+        }
+    }
+
+    /**
+     * Open read-only connections to a file. If one of them can't be opened,
+     * the others are closed again.
+     *
+     * @param dbpath
+     * @param first  an already open connection to use as the first reader or
+     *               <code>null</code>
+     * @param count  the total number of readers
+     * @param tuning settings to apply to the new connections or
+     *               <code>null</code>
+     * @return the connections
+     */
+    private static SQLiteDatabase[] openReaders(File dbpath, SQLiteDatabase first, int count,
+                                                MBTilesTuning tuning) {
+        final SQLiteDatabase[] readers = new SQLiteDatabase[Math.max(0, count)];
+        int i = 0;
+        if (first != null && readers.length > 0) {
+            readers[i++] = first;
+        }
+
+        try {
+            for (; i < readers.length; i++) {
+                readers[i] = SQLiteDatabase.openDatabase(dbpath.getAbsolutePath(), null,
+                        SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+                if (tuning != null) {
+                    tuning.apply(readers[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            for (SQLiteDatabase reader : readers) {
+                if (reader != null && reader != first) {
+                    reader.close();
+                }
+            }
+            throw e;
+        }
+        return readers;
+    }
+
     /**
      * Create a new {@link MBTiles} and add it to the map with the supplied
      * metadata.
@@ -82,20 +627,285 @@ public class MBTilesMap extends HashMap<String, MBTiles> {
      * @param format      the file format of the tiles
      * @param bounds      bounding box of the map. Might be <code>null</code>
      * @return the newly created {@link MBTiles} which has been added to the map
+     * and is acquired, so it must be {@link #release(MBTiles) released}
      */
     public MBTiles create(String name, File dbpath, MBTilesVersion version, String description, LayerType type,
                           MBTilesMetadata.TileFormat format, MBTilesBounds bounds) {
+        return create(name, dbpath, version, description, type, format, bounds, MBTilesLayout.FLAT);
+    }
+
+    /**
+     * Create a new {@link MBTiles} with the given storage layout and add it
+     * to the map with the supplied metadata.
+     *
+     * @param name        the name.
+     * @param dbpath      the absolute path where the file shall be saved.
+     * @param version     the version of the {@link MBTiles}
+     * @param description an description of map
+     * @param type        the type of map layer
+     * @param format      the file format of the tiles
+     * @param bounds      bounding box of the map. Might be <code>null</code>
+     * @param layout      {@link MBTilesLayout#DEDUPLICATED} to store identical
+     *                    tiles only once, {@link MBTilesLayout#CLUSTERED} to
+     *                    keep neighbouring tiles on the same pages
+     * @return the newly created {@link MBTiles} which has been added to the map
+     * and is acquired, so it must be {@link #release(MBTiles) released}
+     */
+    public MBTiles create(String name, File dbpath, MBTilesVersion version, String description, LayerType type,
+                          MBTilesMetadata.TileFormat format, MBTilesBounds bounds, MBTilesLayout layout) {
 
         final SQLiteDatabase database = SQLiteDatabase.openDatabase(dbpath.getAbsolutePath(), null,
                 SQLiteDatabase.CREATE_IF_NECESSARY | SQLiteDatabase.OPEN_READWRITE
                         | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
 
+        // before the metadata table, the first one
+        MBTilesSQLite.setIncrementalVacuum(database);
         final MBTilesMetadata metadata = MBTilesMetadata.create(database, name, description, type, version, format,
                 bounds);
-        final MBTiles mbTiles = MBTiles.create(database, metadata, version);
+        database.enableWriteAheadLogging();
 
-        put(name, mbTiles);
-        return get(name);
+        return put(name, MBTiles.create(database, metadata, version, layout));
+    }
+
+    /**
+     * Add a {@link MBTiles} to the map. If there is already an entry with
+     * that name, it will be closed and replaced.
+     *
+     * @param name
+     * @param mbTiles
+     * @return the added {@link MBTiles}, which is acquired, so it must be
+     * {@link #release(MBTiles) released}
+     */
+    public MBTiles put(String name, MBTiles mbTiles) {
+        final Archive archive = new Archive(new File(mbTiles.getPath()), mbTiles.getVersion(),
+                DEFAULT_READ_CONNECTIONS, null);
+        archive.tiles = mbTiles;
+        archive.metadata = mbTiles.getMetadata();
+        archive.lastUsed = SystemClock.elapsedRealtime();
+        archive.refs = 1;
+
+        replace(name, archive);
+        enforceMaxOpen(archive);
+        return mbTiles;
+    }
+
+    private void replace(String name, Archive archive) {
+        archive.name = name;
+        final Archive previous = this.archives.put(name, archive);
+        if (previous != null && previous != archive) {
+            retire(previous);
+        }
+    }
+
+    /**
+     * Get an {@link MBTiles}, opening it if necessary. Like in earlier
+     * versions the archive then stays open until it is removed or replaced;
+     * it is not closed by {@link #setMaxOpen(int)} or the idle timeout.
+     *
+     * @param name
+     * @return the {@link MBTiles} with that name or <code>null</code> if there
+     * is none or it could not be opened
+     * @deprecated Use {@link #acquire(String)} and {@link #release(MBTiles)},
+     * which let unused archives be closed and report why an archive could
+     * not be opened.
+     */
+    @Deprecated
+    public MBTiles get(String name) {
+        final Archive archive = this.archives.get(name);
+        if (archive == null) {
+            return null;
+        }
+
+        final MBTiles tiles;
+        synchronized (archive) {
+            if (archive.closePending) {
+                return null;
+            }
+            try {
+                tiles = openArchive(archive);
+            } catch (Exception e) {
+                return null;
+            }
+            if (tiles == null) {
+                return null;
+            }
+            if (!archive.pinned) {
+                archive.pinned = true;
+                archive.refs++;
+            }
+            archive.lastUsed = SystemClock.elapsedRealtime();
+        }
+
+        enforceMaxOpen(archive);
+        return tiles;
+    }
+
+    /**
+     * @param name
+     * @return the metadata of the archive if it has been opened at least once
+     * or is known to the validation cache, else <code>null</code>. The archive
+     * is not opened.
+     */
+    public MBTilesMetadata getMetadata(String name) {
+        final Archive archive = this.archives.get(name);
+        if (archive == null) {
+            return null;
+        }
+
+        synchronized (archive) {
+            if (archive.metadata != null) {
+                return archive.metadata;
+            }
+        }
+
+        final MBTilesValidationCache cache = this.validationCache;
+        return (cache == null) ? null : cache.get(archive.path);
+    }
+
+    /**
+     * @param name
+     * @return <code>true</code> if the archive is currently open
+     */
+    public boolean isOpen(String name) {
+        final Archive archive = this.archives.get(name);
+        if (archive == null) {
+            return false;
+        }
+
+        synchronized (archive) {
+            return archive.tiles != null;
+        }
+    }
+
+    public boolean containsKey(String name) {
+        return this.archives.containsKey(name);
+    }
+
+    public Set<String> keySet() {
+        return this.archives.keySet();
+    }
+
+    /**
+     * @return the archives which are currently open
+     */
+    public Collection<MBTiles> values() {
+        final ArrayList<MBTiles> open = new ArrayList<MBTiles>(this.archives.size());
+        for (Archive archive : this.archives.values()) {
+            synchronized (archive) {
+                if (archive.tiles != null) {
+                    open.add(archive.tiles);
+                }
+            }
+        }
+        return open;
+    }
+
+    public int size() {
+        return this.archives.size();
+    }
+
+    public boolean isEmpty() {
+        return this.archives.isEmpty();
+    }
+
+    /**
+     * Set the maximum number of open archives. If more archives are open,
+     * the least recently used ones which are not acquired are closed.
+     *
+     * @param maxOpen
+     */
+    public void setMaxOpen(int maxOpen) {
+        this.maxOpen = Math.max(1, maxOpen);
+        enforceMaxOpen(null);
+    }
+
+    /**
+     * Close archives which are not acquired and have not been used for the
+     * given time. The check runs in the background.
+     *
+     * @param millis the idle timeout or <code>0</code> to keep idle archives
+     *               open
+     */
+    public synchronized void setIdleTimeout(long millis) {
+        this.idleTimeout = millis;
+
+        if (this.sweeper != null) {
+            this.sweeper.shutdownNow();
+            this.sweeper = null;
+        }
+
+        if (millis > 0) {
+            this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "MBTiles-idle");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            final long period = Math.max(1, millis / 2);
+            this.sweeper.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    closeIdle();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Close all archives which are not acquired and have been idle for
+     * longer than the idle timeout.
+     *
+     * @return the number of closed archives
+     */
+    public int closeIdle() {
+        final long timeout = this.idleTimeout;
+        final long now = SystemClock.elapsedRealtime();
+
+        int count = 0;
+        for (Archive archive : this.archives.values()) {
+            final boolean idle;
+            synchronized (archive) {
+                idle = now - archive.lastUsed >= timeout;
+            }
+            if (idle && closeIfUnused(archive)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Close the least recently used archives which are not acquired until at
+     * most {@link #setMaxOpen(int)} archives are open.
+     *
+     * @param keep an archive which has just been opened and is kept open, or
+     *             <code>null</code>
+     */
+    private void enforceMaxOpen(Archive keep) {
+        while (true) {
+            int open = 0;
+            Archive coldest = null;
+            long coldestUsed = Long.MAX_VALUE;
+
+            for (Archive archive : this.archives.values()) {
+                synchronized (archive) {
+                    if (archive.tiles == null) {
+                        continue;
+                    }
+                    open++;
+                    if (archive != keep && archive.refs == 0 && archive.lastUsed < coldestUsed) {
+                        coldest = archive;
+                        coldestUsed = archive.lastUsed;
+                    }
+                }
+            }
+
+            if (open <= this.maxOpen || coldest == null || !closeIfUnused(coldest)) {
+                return;
+            }
+        }
     }
 
     /**
@@ -103,36 +913,103 @@ public class MBTilesMap extends HashMap<String, MBTiles> {
      * freed and the underlying database will be closed, so the returned
      * {@link MBTiles} might not be very useful anymore.
      *
+     * If the archive is acquired, it is closed once it has been released.
+     *
      * @param name the name (key) of the {@link MBTiles} to be removed
      * @return the {@link MBTiles} associated with the name, or
-     * <code>null</code> if this mapping is not available.
-     * @see HashMap#remove(Object)
+     * <code>null</code> if this mapping is not available or not open.
      */
-    @Override
-    public MBTiles remove(Object name) {
-        final MBTiles removed = super.remove(name);
+    public MBTiles remove(String name) {
+        final Archive removed = this.archives.remove(name);
+        return (removed == null) ? null : retire(removed);
+    }
 
-        try {
-            removed.close();
-        } catch (NullPointerException e) {
-            return null;
+    /**
+     * Close an archive which is no longer in the map, or keep it until it has
+     * been released if it is acquired.
+     *
+     * @param archive
+     * @return the {@link MBTiles} of the archive or <code>null</code> if it
+     * was not open
+     */
+    private MBTiles retire(Archive archive) {
+        synchronized (archive) {
+            unpin(archive);
+            final MBTiles tiles = archive.tiles;
+            if (!close(archive)) {
+                this.retired.add(archive);
+            }
+            return tiles;
         }
+    }
 
-        return removed;
+    /**
+     * Close an archive, or as soon as the last reference is released if it is
+     * acquired. The references are never dropped here. Must be called while
+     * holding the lock of the archive.
+     *
+     * @param archive
+     * @return <code>true</code> if the archive is closed now
+     */
+    private boolean close(Archive archive) {
+        if (archive.refs > 0) {
+            archive.closePending = true;
+            return false;
+        }
+        closeNow(archive);
+        return true;
     }
 
-    @Override
+    /**
+     * Drop the reference taken by {@link #get(String)}, if any. Must be
+     * called while holding the lock of the archive.
+     */
+    private static void unpin(Archive archive) {
+        if (archive.pinned) {
+            archive.pinned = false;
+            // unless it has been released by mistake
+            if (archive.refs > 0) {
+                archive.refs--;
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding the lock of the archive.
+     */
+    private void closeNow(Archive archive) {
+        if (archive.tiles != null) {
+            closeTiles(archive);
+        }
+        archive.closePending = false;
+    }
+
+    /**
+     * Remove and close all {@link MBTiles}.
+     */
     public void clear() {
-        for (MBTiles tile : values()) {
-            tile.close();
+        for (String name : this.archives.keySet()) {
+            remove(name);
         }
-        super.clear();
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        this.clear();
-        super.finalize();
+    /**
+     * Remove and close all {@link MBTiles} and stop the background threads
+     * for the idle timeout and the validation. Call it once the map isn't
+     * needed anymore; acquired archives are closed once they are released.
+     */
+    public void close() {
+        clear();
+
+        final ExecutorService executor;
+        synchronized (this) {
+            setIdleTimeout(0);
+            executor = this.validator;
+            this.validator = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
     }
 
 }
@@ -19,20 +19,71 @@ public class MBTilesMetadata implements IMetadata {
      */
     public static enum TileFormat {
 
-        JPEG, PNG;
+        JPEG("jpg", "jpeg"), PNG("png"),
 
+        /**
+         * Mapbox vector tiles, usually gzip compressed. They can't be decoded
+         * into bitmaps, read them with {@link MBTilesVectorTile}.
+         */
+        PBF("pbf"),
+
+        /**
+         * WebP, lossless if written with a quality of <code>100</code>.
+         */
+        WEBP("webp");
+
+        private final String[] names;
+
+        private TileFormat(String... names) {
+            this.names = names;
+        }
+
+        /**
+         * @param format the name of the format as in the metadata, e.g.
+         *               <code>jpg</code> or <code>jpeg</code>
+         * @return the format or <code>null</code> if it is unknown
+         */
         public static TileFormat fromString(String format) {
             for (TileFormat tf : values()) {
-                if (tf.toString().equals(format)) {
-                    return tf;
+                for (String name : tf.names) {
+                    if (name.equalsIgnoreCase(format)) {
+                        return tf;
+                    }
                 }
             }
             return null;
         }
 
+        /**
+         * Guess the format of tile data from its first bytes.
+         *
+         * @param data
+         * @return the format or <code>null</code> if it is not recognized
+         */
+        public static TileFormat detect(byte[] data) {
+            if (data == null || data.length < 4) {
+                return null;
+            }
+            final int b0 = data[0] & 0xFF, b1 = data[1] & 0xFF, b2 = data[2] & 0xFF, b3 = data[3] & 0xFF;
+            if (b0 == 0xFF && b1 == 0xD8 && b2 == 0xFF) {
+                return JPEG;
+            }
+            if (b0 == 0x89 && b1 == 'P' && b2 == 'N' && b3 == 'G') {
+                return PNG;
+            }
+            if (b0 == 'R' && b1 == 'I' && b2 == 'F' && b3 == 'F' && data.length >= 12 && data[8] == 'W'
+                    && data[9] == 'E' && data[10] == 'B' && data[11] == 'P') {
+                return WEBP;
+            }
+            if (MBTilesVectorTile.isGzipped(data)) {
+                return PBF;
+            }
+            return null;
+        }
+
         @Override
         public String toString() {
-            return name().toLowerCase();
+            return this.names[0];
         }
     }
 
@@ -76,7 +127,7 @@ public class MBTilesMetadata implements IMetadata {
      */
     public final MBTilesVersion version;
     /**
-     * The image file format of the tile data: png or jpg
+     * The file format of the tile data: png, jpg, webp or pbf
      */
     public final TileFormat format;
     /**
@@ -165,19 +216,31 @@ public class MBTilesMetadata implements IMetadata {
         MBTilesSQLite.createTableMetadata(database, version);
         MBTilesSQLite.createIndexMetadata(database, version);
 
-        ContentValues cv = new ContentValues();
-        cv.put(KEY_NAME, name);
-        cv.put(KEY_DESCRIPTION, description);
-        cv.put(KEY_TYPE, type.toString());
-        cv.put(KEY_VERSION, version.toString());
-        cv.put(KEY_FORMAT, format.toString());
-        cv.put(KEY_BOUNDS, bounds.toString());
-
-        database.insert(TABLE_NAME, null, cv);
+        insert(database, KEY_NAME, name);
+        insert(database, KEY_DESCRIPTION, description);
+        insert(database, KEY_TYPE, type);
+        insert(database, KEY_VERSION, version);
+        insert(database, KEY_FORMAT, format);
+        insert(database, KEY_BOUNDS, bounds);
 
         return new MBTilesMetadata(name, description, type, version, format, bounds);
     }
 
+    /**
+     * Insert one name/value row into the metadata table. Nothing is inserted
+     * for <code>null</code> values.
+     */
+    private static void insert(SQLiteDatabase database, String key, Object value) {
+        if (value == null) {
+            return;
+        }
+
+        final ContentValues cv = new ContentValues();
+        cv.put(COL_METADATA_NAME, key);
+        cv.put(COL_METADATA_VALUE, value.toString());
+        database.insert(TABLE_NAME, null, cv);
+    }
+
     @Override
     public String toString() {
         String none = " - ";
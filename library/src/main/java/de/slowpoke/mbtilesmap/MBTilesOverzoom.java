@@ -0,0 +1,228 @@
+package de.slowpoke.mbtilesmap;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.util.LruCache;
+
+/**
+ * Fills in tiles which are missing from a {@link ITileSource} by scaling up
+ * the matching part of the nearest ancestor tile. This way archives can leave
+ * out their highest zoom levels without leaving holes in the map.
+ * <p/>
+ * Decoded ancestors are kept in a {@link LruCache}, so the children of one
+ * parent are all cut from the same bitmap, and synthesized tiles are kept in
+ * a second one. Both are bounded by their size in bytes. Ancestors which the
+ * source doesn't have are remembered as well, and if the source is a
+ * {@link MBTiles} or {@link MBTilesComposite}, the walk starts at its highest
+ * zoom level instead of asking for levels it can't have. Tiles served by this
+ * class are shared and must not be recycled or returned to a
+ * {@link MBTilesBitmapPool}.
+ *
+ * @author Brian
+ */
+public class MBTilesOverzoom implements ITileSource, ComponentCallbacks2 {
+
+    /**
+     * Default number of zoom levels to look up for an ancestor.
+     */
+    public final static int DEFAULT_MAX_OVERZOOM = 4;
+
+    private final static int MISSING_ENTRIES = 4096;
+
+    private final ITileSource source;
+    private final int maxOverzoom;
+    private final LruCache<Long, Bitmap> parents;
+    private final LruCache<Long, Bitmap> synthesized;
+    private final LruCache<Long, Boolean> missing;
+
+    /**
+     * Create a new overzoom source.
+     *
+     * @param source      the source of the real tiles
+     * @param maxOverzoom the number of zoom levels to look up for an ancestor
+     * @param parentBytes the maximum size of all cached ancestors in bytes
+     * @param tileBytes   the maximum size of all synthesized tiles in bytes
+     */
+    public MBTilesOverzoom(ITileSource source, int maxOverzoom, int parentBytes, int tileBytes) {
+        this.source = source;
+        this.maxOverzoom = maxOverzoom;
+        this.parents = new LruCache<Long, Bitmap>(parentBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        this.synthesized = new LruCache<Long, Bitmap>(tileBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        this.missing = new LruCache<Long, Boolean>(MISSING_ENTRIES);
+    }
+
+    /**
+     * Get one tile from the source or, if it is missing, synthesize it from
+     * the nearest ancestor within the configured number of zoom levels.
+     *
+     * @param x
+     * @param y the tile row in TMS scheme
+     * @param z
+     * @return the tile or <code>null</code> if neither the tile nor an
+     * ancestor exists
+     */
+    @Override
+    public Bitmap getTile(final int x, final int y, final int z) {
+        final Long key = MBTilesTileKey.pack(x, y, z);
+
+        Bitmap tile = this.synthesized.get(key);
+        if (tile != null) {
+            return tile;
+        }
+
+        final int maxZoom = getSourceMaxZoom();
+        if (z <= maxZoom) {
+            tile = this.source.getTile(x, y, z);
+            if (tile != null) {
+                return tile;
+            }
+        }
+
+        for (int dz = Math.max(1, z - maxZoom); dz <= this.maxOverzoom && dz <= z; dz++) {
+            final Bitmap parent = getParent(x >> dz, y >> dz, z - dz);
+            if (parent != null) {
+                tile = crop(parent, x, y, dz);
+                if (tile != null) {
+                    this.synthesized.put(key, tile);
+                }
+                return tile;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the data of a tile from the source. Synthesized tiles only exist as
+     * bitmaps, so this is <code>null</code> for missing tiles.
+     */
+    @Override
+    public byte[] getTileBytes(final int x, final int y, final int z) {
+        return this.source.getTileBytes(x, y, z);
+    }
+
+    private Bitmap getParent(final int x, final int y, final int z) {
+        final Long key = MBTilesTileKey.pack(x, y, z);
+
+        Bitmap parent = this.parents.get(key);
+        if (parent == null && this.missing.get(key) == null) {
+            parent = this.source.getTile(x, y, z);
+            if (parent != null) {
+                this.parents.put(key, parent);
+            } else {
+                this.missing.put(key, Boolean.TRUE);
+            }
+        }
+
+        return parent;
+    }
+
+    /**
+     * @return the highest zoom level the source might have a tile at
+     */
+    private int getSourceMaxZoom() {
+        if (this.source instanceof MBTiles) {
+            return ((MBTiles) this.source).getMaxZoom();
+        }
+        if (this.source instanceof MBTilesComposite) {
+            return ((MBTilesComposite) this.source).getMaxZoom();
+        }
+        return MBTilesBounds.MAX_ZOOM;
+    }
+
+    /**
+     * Cut the part covering a descendant out of a tile and scale it to the
+     * size of the tile.
+     *
+     * @param parent the ancestor tile
+     * @param x      the column of the descendant
+     * @param y      the row (TMS) of the descendant
+     * @param dz     the number of zoom levels between them
+     * @return the synthesized tile
+     */
+    static Bitmap crop(final Bitmap parent, final int x, final int y, final int dz) {
+        final int width = parent.getWidth();
+        final int height = parent.getHeight();
+        final int parts = 1 << dz;
+        final int partWidth = Math.max(1, width / parts);
+        final int partHeight = Math.max(1, height / parts);
+
+        final int column = x & (parts - 1);
+        // rows are counted from the south, pixels from the top
+        final int row = parts - 1 - (y & (parts - 1));
+        final int left = Math.min(column * partWidth, width - partWidth);
+        final int top = Math.min(row * partHeight, height - partHeight);
+
+        final Matrix scale = new Matrix();
+        scale.setScale((float) width / partWidth, (float) height / partHeight);
+        return Bitmap.createBitmap(parent, left, top, partWidth, partHeight, scale, true);
+    }
+
+    /**
+     * Forget the synthesized tile of a position, e.g. after the real tile has
+     * been written.
+     *
+     * @param x
+     * @param y
+     * @param z
+     */
+    public void remove(final int x, final int y, final int z) {
+        final Long key = MBTilesTileKey.pack(x, y, z);
+        this.synthesized.remove(key);
+        this.missing.remove(key);
+    }
+
+    /**
+     * Remove all cached ancestors and synthesized tiles and forget which
+     * ancestors are missing.
+     */
+    public void clear() {
+        this.parents.evictAll();
+        this.synthesized.evictAll();
+        this.missing.evictAll();
+    }
+
+    /**
+     * @return the source of the real tiles
+     */
+    public ITileSource getSource() {
+        return this.source;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            this.parents.trimToSize(this.parents.maxSize() / 2);
+            this.synthesized.trimToSize(this.synthesized.maxSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    @Override
+    public String toString() {
+        return "Parents: " + this.parents.toString() + " | Synthesized: " + this.synthesized.toString();
+    }
+
+}
@@ -0,0 +1,530 @@
+package de.slowpoke.mbtilesmap;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.slowpoke.mbtilesmap.MBTiles.TileCallback;
+import de.slowpoke.mbtilesmap.MBTilesMetadata.LayerType;
+import de.slowpoke.mbtilesmap.MBTilesMetadata.TileFormat;
+
+/**
+ * An immutable file of tiles which is read through a {@link MappedByteBuffer}
+ * instead of SQLite. Packs are written by
+ * {@link MBTiles#exportPack(File)} and offer the same read methods as
+ * {@link MBTiles}.
+ * <p/>
+ * A pack consists of a header, the concatenated tile data, a directory of
+ * {@link MBTilesTileKey tile keys} with offset and length sorted by key, and
+ * the metadata entries. A tile is found with a binary search over the
+ * directory. Packs are limited to 2 GiB, the size of one mapping.
+ * <p/>
+ * The mapping is released by the garbage collector, not by {@link #close()}.
+ *
+ * @author Brian
+ */
+public class MBTilesPack implements IMBTiles, ITileSource {
+
+    private final static int MAGIC = 0x4D425450;
+    private final static int FILE_VERSION = 1;
+
+    /**
+     * magic, version, tile count, directory offset, metadata offset
+     */
+    private final static int HEADER_BYTES = 20;
+
+    /**
+     * key, offset, length
+     */
+    private final static int ENTRY_BYTES = 16;
+
+    /**
+     * Tiles per query while writing. A page should fit into one cursor window,
+     * else the query is run again from the start of the page for every
+     * window.
+     */
+    private final static int PAGE_SIZE = 64;
+
+    private final static String SELECT_TILE_PAGE = "SELECT " + COL_TILE_COLUMN + ", " + COL_TILE_ROW + ", "
+            + COL_TILE_DATA + " FROM " + TABLE_NAME + " WHERE " + COL_ZOOM_LEVEL + "=? AND " + COL_TILE_COLUMN
+            + ">=? AND (" + COL_TILE_COLUMN + ">? OR " + COL_TILE_ROW + ">?) ORDER BY " + COL_TILE_COLUMN + ", "
+            + COL_TILE_ROW + " LIMIT " + PAGE_SIZE;
+    private final static String SELECT_NEXT_ZOOM = "SELECT MIN(" + COL_ZOOM_LEVEL + ") FROM " + TABLE_NAME
+            + " WHERE " + COL_ZOOM_LEVEL + ">?";
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final int directory;
+    private final MBTilesMetadata metadata;
+    private final MBTilesDecoder decoder = new MBTilesDecoder();
+
+    /**
+     * Open a pack and map it into memory.
+     *
+     * @param pack
+     * @throws IOException if the file can't be read or is not a pack
+     */
+    public MBTilesPack(File pack) throws IOException {
+        this.file = new RandomAccessFile(pack, "r");
+        try {
+            final FileChannel channel = this.file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE || channel.size() < HEADER_BYTES) {
+                throw new IOException("Not a tile pack: " + pack);
+            }
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (this.buffer.getInt(0) != MAGIC || this.buffer.getInt(4) != FILE_VERSION) {
+                throw new IOException("Not a tile pack: " + pack);
+            }
+            this.count = this.buffer.getInt(8);
+            this.directory = this.buffer.getInt(12);
+            this.metadata = readMetadata(this.buffer.getInt(16));
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        } catch (RuntimeException e) {
+            this.file.close();
+            throw new IOException("Corrupt tile pack: " + pack, e);
+        }
+    }
+
+    /**
+     * Write all tiles of a database to a pack. The tiles are streamed in the
+     * order of the tiles index, one page at a time which continues after the
+     * last tile of the previous page; only the directory is buffered, in a
+     * temporary file next to the pack.
+     *
+     * @param database a database containing the tiles table
+     * @param metadata the metadata to store with the tiles, might be
+     *                 <code>null</code>
+     * @param pack     the pack to write
+     * @return the number of tiles written
+     * @throws IOException
+     */
+    static int write(SQLiteDatabase database, MBTilesMetadata metadata, File pack) throws IOException {
+        final File entries = new File(pack.getPath() + ".dir");
+        final File tmp = new File(pack.getPath() + ".tmp");
+
+        int count = 0;
+        long offset = HEADER_BYTES;
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                // the header is written once the offsets are known
+                out.write(new byte[HEADER_BYTES]);
+
+                final DataOutputStream dir = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(entries)));
+                try {
+                    int z = nextZoom(database, -1);
+                    int x = -1, y = -1;
+                    while (z >= 0) {
+                        final Cursor c = MBTilesQuery.query(database, SELECT_TILE_PAGE, z, x, x, y);
+                        int rows = 0;
+                        try {
+                            while (c.moveToNext()) {
+                                rows++;
+                                x = c.getInt(0);
+                                y = c.getInt(1);
+                                final byte[] data = c.getBlob(2);
+                                if (data == null) {
+                                    continue;
+                                }
+                                if (offset + data.length > Integer.MAX_VALUE) {
+                                    throw new IOException("Tile pack exceeds 2 GiB");
+                                }
+
+                                dir.writeLong(MBTilesTileKey.pack(x, y, z));
+                                dir.writeInt((int) offset);
+                                dir.writeInt(data.length);
+                                out.write(data);
+                                offset += data.length;
+                                count++;
+                            }
+                        } finally {
+                            c.close();
+                        }
+
+                        if (rows < PAGE_SIZE) {
+                            z = nextZoom(database, z);
+                            x = -1;
+                            y = -1;
+                        }
+                    }
+                } finally {
+                    dir.close();
+                }
+
+                copy(entries, out);
+                writeMetadata(out, metadata);
+            } finally {
+                out.close();
+            }
+
+            final long metadataOffset = offset + (long) count * ENTRY_BYTES;
+            if (tmp.length() > Integer.MAX_VALUE) {
+                throw new IOException("Tile pack exceeds 2 GiB");
+            }
+
+            final RandomAccessFile header = new RandomAccessFile(tmp, "rw");
+            try {
+                header.writeInt(MAGIC);
+                header.writeInt(FILE_VERSION);
+                header.writeInt(count);
+                header.writeInt((int) offset);
+                header.writeInt((int) metadataOffset);
+            } finally {
+                header.close();
+            }
+
+            if (!tmp.renameTo(pack)) {
+                throw new IOException("Could not write " + pack);
+            }
+            return count;
+        } finally {
+            entries.delete();
+            tmp.delete();
+        }
+    }
+
+    /**
+     * @return the lowest zoom level above the given one which has tiles, or
+     * <code>-1</code>
+     */
+    private static int nextZoom(final SQLiteDatabase database, final int above) {
+        final Cursor c = MBTilesQuery.query(database, SELECT_NEXT_ZOOM, above);
+        try {
+            return (c.moveToFirst() && !c.isNull(0)) ? c.getInt(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Write all tiles of this pack to {@link MBTiles} in batched
+     * transactions.
+     *
+     * @param tiles     the tiles to write to
+     * @param batchSize the number of tiles per transaction
+     * @return the number of tiles written
+     */
+    public int copyTo(MBTiles tiles, int batchSize) {
+        final MBTilesWriter writer = tiles.openWriter(batchSize);
+        boolean done = false;
+        try {
+            int written = 0;
+            for (int i = 0; i < this.count; i++) {
+                final long key = keyAt(i);
+                final byte[] data = read(i);
+                if (writer.setTileBytes(data, MBTilesTileKey.x(key), MBTilesTileKey.y(key),
+                        MBTilesTileKey.z(key))) {
+                    written++;
+                }
+            }
+            done = true;
+            return written;
+        } finally {
+            if (done) {
+                writer.close();
+            } else {
+                writer.abort();
+            }
+        }
+    }
+
+    /**
+     * Get one tile.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @return the bitmap of the tile or <code>null</code> if no tile matched
+     * the given parameters or the tiles are {@link #isVector() vector tiles}
+     */
+    @Override
+    public Bitmap getTile(final int x, final int y, final int z) {
+        final int i = isVector() ? -1 : find(x, y, z);
+        if (i < 0) {
+            return null;
+        }
+
+        final byte[] data = read(i);
+        return this.decoder.decode(data, 0, data.length);
+    }
+
+    @Override
+    public byte[] getTileBytes(final int x, final int y, final int z) {
+        final int i = find(x, y, z);
+        return (i < 0) ? null : read(i);
+    }
+
+    /**
+     * Copy the data of one tile into a buffer, see
+     * {@link MBTiles#getTileBytes(int, int, int, byte[], int)}.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @param buffer the buffer to copy the tile data to
+     * @param offset the position in the buffer
+     * @return the length of the tile data, <code>-1</code> if no tile matched.
+     * Nothing is copied if the data doesn't fit.
+     */
+    public int getTileBytes(final int x, final int y, final int z, final byte[] buffer, final int offset) {
+        final int i = find(x, y, z);
+        if (i < 0) {
+            return -1;
+        }
+
+        final int length = this.buffer.getInt(this.directory + i * ENTRY_BYTES + 12);
+        if (offset + length <= buffer.length) {
+            final ByteBuffer data = this.buffer.duplicate();
+            data.position(this.buffer.getInt(this.directory + i * ENTRY_BYTES + 8));
+            data.get(buffer, offset, length);
+        }
+        return length;
+    }
+
+    /**
+     * Get all tiles of a zoom level within a range of columns and rows, see
+     * {@link MBTiles#getTiles(int, int, int, int, int, TileCallback)}. The
+     * range is clipped to the zoom level and to the bounds of the metadata,
+     * so columns and rows beyond them never reach the tile keys. Vector tiles
+     * are handed to the callback as <code>null</code>.
+     *
+     * @return the number of tiles handed to the callback
+     */
+    public int getTiles(final int z, final int minX, final int minY, final int maxX, final int maxY,
+                        final TileCallback callback) {
+        if (z < 0 || z > MBTilesBounds.MAX_ZOOM) {
+            return 0;
+        }
+
+        final int last = (1 << z) - 1;
+        int fromX = Math.max(0, minX), fromY = Math.max(0, minY);
+        int toX = Math.min(last, maxX), toY = Math.min(last, maxY);
+        final MBTilesBounds bounds = (this.metadata == null) ? null : this.metadata.bounds;
+        if (bounds != null) {
+            fromX = Math.max(fromX, bounds.getMinColumn(z));
+            fromY = Math.max(fromY, bounds.getMinRow(z));
+            toX = Math.min(toX, bounds.getMaxColumn(z));
+            toY = Math.min(toY, bounds.getMaxRow(z));
+        }
+
+        final boolean vector = isVector();
+
+        int handed = 0;
+        for (int x = fromX; x <= toX && fromY <= toY; x++) {
+            final long lastKey = MBTilesTileKey.pack(x, toY, z);
+            for (int i = lowerBound(MBTilesTileKey.pack(x, fromY, z)); i < this.count; i++) {
+                final long key = keyAt(i);
+                if (key > lastKey) {
+                    break;
+                }
+                final Bitmap tile;
+                if (vector) {
+                    tile = null;
+                } else {
+                    final byte[] data = read(i);
+                    tile = this.decoder.decode(data, 0, data.length);
+                }
+                handed++;
+                if (!callback.onTile(tile, x, MBTilesTileKey.y(key), z)) {
+                    return handed;
+                }
+            }
+        }
+        return handed;
+    }
+
+    /**
+     * @return <code>true</code> if the tiles are vector tiles, which can't be
+     * decoded into bitmaps
+     * @see MBTiles#isVector()
+     */
+    public boolean isVector() {
+        return this.metadata != null && this.metadata.format == TileFormat.PBF;
+    }
+
+    /**
+     * @see MBTiles#setDecodeOptions(Bitmap.Config, int)
+     */
+    public void setDecodeOptions(final Bitmap.Config config, final int sampleSize) {
+        this.decoder.setOptions(config, sampleSize);
+    }
+
+    /**
+     * @see MBTiles#setBitmapPool(MBTilesBitmapPool)
+     */
+    public void setBitmapPool(final MBTilesBitmapPool pool) {
+        this.decoder.setPool(pool);
+    }
+
+    /**
+     * @return the metadata stored with the tiles, might be <code>null</code>
+     */
+    public MBTilesMetadata getMetadata() {
+        return this.metadata;
+    }
+
+    public int getTileCount() {
+        return this.count;
+    }
+
+    /**
+     * Close the file. The mapping stays valid until it is garbage collected.
+     */
+    public void close() {
+        try {
+            this.file.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private long keyAt(final int i) {
+        return this.buffer.getLong(this.directory + i * ENTRY_BYTES);
+    }
+
+    private byte[] read(final int i) {
+        final int offset = this.buffer.getInt(this.directory + i * ENTRY_BYTES + 8);
+        final int length = this.buffer.getInt(this.directory + i * ENTRY_BYTES + 12);
+
+        final byte[] bytes = new byte[length];
+        final ByteBuffer data = this.buffer.duplicate();
+        data.position(offset);
+        data.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the index of the tile in the directory or <code>-1</code>.
+     * Coordinates outside of the zoom level would alias the key of another
+     * tile and are never found.
+     */
+    private int find(final int x, final int y, final int z) {
+        if (z < 0 || z > MBTilesBounds.MAX_ZOOM || x < 0 || y < 0 || x >= (1 << z) || y >= (1 << z)) {
+            return -1;
+        }
+        return find(MBTilesTileKey.pack(x, y, z));
+    }
+
+    /**
+     * @return the index of the key in the directory or <code>-1</code>
+     */
+    private int find(final long key) {
+        final int i = lowerBound(key);
+        return (i < this.count && keyAt(i) == key) ? i : -1;
+    }
+
+    /**
+     * @return the index of the first key which is not less than the given key
+     */
+    private int lowerBound(final long key) {
+        int low = 0, high = this.count;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (keyAt(mid) < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static void copy(File from, DataOutputStream to) throws IOException {
+        final FileInputStream in = new FileInputStream(from);
+        try {
+            final byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                to.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeMetadata(DataOutputStream out, MBTilesMetadata m) throws IOException {
+        final LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+        if (m != null) {
+            put(entries, IMetadata.KEY_NAME, m.name);
+            put(entries, IMetadata.KEY_DESCRIPTION, m.description);
+            put(entries, IMetadata.KEY_TYPE, m.type);
+            put(entries, IMetadata.KEY_VERSION, m.version);
+            put(entries, IMetadata.KEY_FORMAT, m.format);
+            put(entries, IMetadata.KEY_BOUNDS, m.bounds);
+            if (m.extra != null) {
+                entries.putAll(m.extra);
+            }
+        }
+
+        out.writeInt(entries.size());
+        for (Map.Entry<String, String> e : entries.entrySet()) {
+            writeString(out, e.getKey());
+            writeString(out, e.getValue());
+        }
+    }
+
+    private static void put(Map<String, String> entries, String key, Object value) {
+        if (value != null) {
+            entries.put(key, value.toString());
+        }
+    }
+
+    private MBTilesMetadata readMetadata(final int offset) throws IOException {
+        final ByteBuffer in = this.buffer.duplicate();
+        in.position(offset);
+
+        final LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+        final int size = in.getInt();
+        for (int i = 0; i < size; i++) {
+            entries.put(readString(in), readString(in));
+        }
+        if (entries.isEmpty()) {
+            return null;
+        }
+
+        final String name = entries.remove(IMetadata.KEY_NAME);
+        final String description = entries.remove(IMetadata.KEY_DESCRIPTION);
+        final LayerType type = LayerType.fromString(entries.remove(IMetadata.KEY_TYPE));
+        final MBTilesVersion version = MBTilesVersion.fromString(entries.remove(IMetadata.KEY_VERSION));
+        final TileFormat format = TileFormat.fromString(entries.remove(IMetadata.KEY_FORMAT));
+        final String bounds = entries.remove(IMetadata.KEY_BOUNDS);
+
+        return new MBTilesMetadata(name, description, type, version, format,
+                bounds == null ? null : new MBTilesBounds(bounds), entries);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        final byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        final byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    @Override
+    public String toString() {
+        return "Tile pack: " + this.count + " tiles | " + this.buffer.capacity() + " bytes";
+    }
+
+}
@@ -0,0 +1,294 @@
+package de.slowpoke.mbtilesmap;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.slowpoke.mbtilesmap.MBTilesLoader.TileRequest;
+
+/**
+ * Loads the tiles which are about to come on screen before they are needed.
+ * It is fed with the viewport on every frame and predicts where the viewport
+ * is heading: the tiles ahead of a pan are requested in the order they will
+ * appear, and during a pinch the tiles of the next zoom level.
+ * <p/>
+ * The tiles are requested from a {@link MBTilesLoader} with
+ * {@link MBTilesLoader#PRIORITY_PREFETCH}, so they never delay visible tiles.
+ * Let the loader load from a {@link MBTilesCache}, which keeps the decoded
+ * tiles until they are drawn. Each update is limited by a byte budget, the
+ * estimated size of the decoded tiles, and a time budget after which
+ * requests which haven't started are dropped. Requests for tiles which are
+ * not predicted anymore are cancelled on the next update.
+ * <p/>
+ * Coordinates are tile coordinates of the zoom level, with rows in TMS
+ * scheme as in the tiles table.
+ *
+ * @author Brian
+ */
+public class MBTilesPrefetcher {
+
+    /**
+     * Default decoded size of a tile until real tiles have been loaded:
+     * 256x256 pixels, ARGB_8888.
+     */
+    public final static int DEFAULT_TILE_BYTES = 256 * 256 * 4;
+
+    /**
+     * Default time to look ahead along the motion.
+     */
+    public final static long DEFAULT_LOOKAHEAD_MILLIS = 1000;
+
+    /**
+     * Zoom velocity in levels per second from which on a pinch is assumed.
+     */
+    private final static float PINCH_VELOCITY = 0.1f;
+
+    private final MBTilesLoader loader;
+    private final int byteBudget;
+    private final long timeBudgetMillis;
+
+    private final ConcurrentHashMap<Long, TileRequest> pending = new ConcurrentHashMap<Long, TileRequest>();
+    private final AtomicLong loadedCount = new AtomicLong();
+    private final AtomicLong loadedBytes = new AtomicLong();
+    private final AtomicLong requestedCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+
+    private final MBTilesLoader.Callback callback = new MBTilesLoader.Callback() {
+        @Override
+        public void onTileLoaded(Bitmap tile, int x, int y, int z) {
+            MBTilesPrefetcher.this.pending.remove(MBTilesTileKey.pack(x, y, z));
+            if (tile != null) {
+                MBTilesPrefetcher.this.loadedCount.incrementAndGet();
+                MBTilesPrefetcher.this.loadedBytes.addAndGet(tile.getByteCount());
+            }
+        }
+    };
+
+    private float viewportColumns = 4;
+    private float viewportRows = 4;
+    private long lookaheadMillis = DEFAULT_LOOKAHEAD_MILLIS;
+
+    /**
+     * Create a new prefetcher.
+     *
+     * @param loader           the loader to request the tiles from
+     * @param byteBudget       the maximum decoded size of the tiles requested
+     *                         per update
+     * @param timeBudgetMillis the time after an update within which its
+     *                         requests must have started
+     */
+    public MBTilesPrefetcher(MBTilesLoader loader, int byteBudget, long timeBudgetMillis) {
+        this.loader = loader;
+        this.byteBudget = byteBudget;
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    /**
+     * Set the size of the viewport.
+     *
+     * @param columns the width in tiles
+     * @param rows    the height in tiles
+     */
+    public synchronized void setViewportSize(float columns, float rows) {
+        this.viewportColumns = columns;
+        this.viewportRows = rows;
+    }
+
+    /**
+     * Set how far ahead along the motion tiles are requested.
+     *
+     * @param millis
+     */
+    public synchronized void setLookahead(long millis) {
+        this.lookaheadMillis = millis;
+    }
+
+    /**
+     * Report the current viewport and request the tiles it is heading to.
+     * Pending requests for tiles which are not predicted anymore are
+     * cancelled.
+     *
+     * @param x            the column of the center
+     * @param y            the row (TMS) of the center
+     * @param z            the zoom level
+     * @param velocityX    the pan velocity in columns per second
+     * @param velocityY    the pan velocity in rows per second
+     * @param zoomVelocity the zoom velocity in levels per second, positive
+     *                     while zooming in
+     * @return the number of new requests
+     */
+    public synchronized int update(float x, float y, int z, float velocityX, float velocityY,
+                                   float zoomVelocity) {
+        final LinkedHashSet<Long> predicted = new LinkedHashSet<Long>();
+        final int budget = (int) Math.max(0, this.byteBudget / getTileByteEstimate());
+
+        if (zoomVelocity >= PINCH_VELOCITY) {
+            addViewport(predicted, x * 2, y * 2, z + 1, budget);
+        } else if (zoomVelocity <= -PINCH_VELOCITY) {
+            addViewport(predicted, x / 2, y / 2, z - 1, budget);
+        }
+        addAhead(predicted, x, y, z, velocityX, velocityY, budget);
+
+        cancelPending(predicted);
+
+        final long deadline = SystemClock.elapsedRealtime() + this.timeBudgetMillis;
+        int count = 0;
+        for (long key : predicted) {
+            if (this.pending.containsKey(key)) {
+                continue;
+            }
+            final TileRequest request = this.loader.load(MBTilesTileKey.x(key), MBTilesTileKey.y(key),
+                    MBTilesTileKey.z(key), MBTilesLoader.PRIORITY_PREFETCH, this.callback, deadline);
+            this.pending.put(key, request);
+            count++;
+        }
+
+        this.requestedCount.addAndGet(count);
+        return count;
+    }
+
+    /**
+     * Cancel all pending requests, e.g. when the map is hidden.
+     *
+     * @return the number of cancelled requests
+     */
+    public synchronized int cancel() {
+        return cancelPending(new LinkedHashSet<Long>());
+    }
+
+    /**
+     * Add the tiles which come into view while moving along the velocity,
+     * in the order they appear. The tiles of the current viewport are left
+     * out; they are loaded as visible tiles.
+     */
+    private void addAhead(LinkedHashSet<Long> predicted, float x, float y, int z, float velocityX,
+                          float velocityY, int budget) {
+        final float seconds = this.lookaheadMillis / 1000f;
+        final float distance = (float) Math.hypot(velocityX, velocityY) * seconds;
+        if (distance < 0.5f) {
+            return;
+        }
+
+        final ArrayList<Long> visible = new ArrayList<Long>();
+        addRect(visible, x, y, z, Integer.MAX_VALUE);
+
+        // one step per tile along the path
+        final int steps = (int) Math.ceil(distance);
+        for (int i = 1; i <= steps && predicted.size() < budget; i++) {
+            final float t = seconds * i / steps;
+            final ArrayList<Long> rect = new ArrayList<Long>();
+            addRect(rect, x + velocityX * t, y + velocityY * t, z, Integer.MAX_VALUE);
+            rect.removeAll(visible);
+            for (Long key : rect) {
+                if (predicted.size() >= budget) {
+                    break;
+                }
+                predicted.add(key);
+            }
+        }
+    }
+
+    private void addViewport(LinkedHashSet<Long> predicted, float x, float y, int z, int budget) {
+        final ArrayList<Long> rect = new ArrayList<Long>();
+        addRect(rect, x, y, z, budget - predicted.size());
+        predicted.addAll(rect);
+    }
+
+    /**
+     * Add the tiles of a viewport centered at the given position, the ones
+     * closest to the center first.
+     */
+    private void addRect(ArrayList<Long> tiles, float x, float y, int z, int limit) {
+        if (z < 0 || z > MBTilesBounds.MAX_ZOOM) {
+            return;
+        }
+
+        final int last = (int) ((1L << z) - 1);
+        final int minX = Math.max(0, (int) Math.floor(x - this.viewportColumns / 2));
+        final int maxX = Math.min(last, (int) Math.floor(x + this.viewportColumns / 2));
+        final int minY = Math.max(0, (int) Math.floor(y - this.viewportRows / 2));
+        final int maxY = Math.min(last, (int) Math.floor(y + this.viewportRows / 2));
+        final int cx = (int) Math.floor(x), cy = (int) Math.floor(y);
+
+        // rings around the center
+        final int rings = Math.max(Math.max(cx - minX, maxX - cx), Math.max(cy - minY, maxY - cy));
+        for (int r = 0; r <= rings; r++) {
+            for (int ty = cy - r; ty <= cy + r; ty++) {
+                for (int tx = cx - r; tx <= cx + r; tx++) {
+                    if (Math.max(Math.abs(tx - cx), Math.abs(ty - cy)) != r
+                            || tx < minX || tx > maxX || ty < minY || ty > maxY) {
+                        continue;
+                    }
+                    if (tiles.size() >= limit) {
+                        return;
+                    }
+                    tiles.add(MBTilesTileKey.pack(tx, ty, z));
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancel pending requests which are not in the given set and forget
+     * finished ones.
+     */
+    private int cancelPending(LinkedHashSet<Long> keep) {
+        int count = 0;
+        final Iterator<Map.Entry<Long, TileRequest>> it = this.pending.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Long, TileRequest> entry = it.next();
+            if (entry.getValue().isDone()) {
+                it.remove();
+            } else if (!keep.contains(entry.getKey())) {
+                if (entry.getValue().cancel(false)) {
+                    count++;
+                }
+                it.remove();
+            }
+        }
+        this.cancelledCount.addAndGet(count);
+        return count;
+    }
+
+    /**
+     * @return the average decoded size of the loaded tiles or
+     * {@link #DEFAULT_TILE_BYTES} if none have been loaded yet
+     */
+    public long getTileByteEstimate() {
+        final long count = this.loadedCount.get();
+        return (count == 0) ? DEFAULT_TILE_BYTES : Math.max(1, this.loadedBytes.get() / count);
+    }
+
+    /**
+     * @return the number of requests which have neither finished nor been
+     * cancelled
+     */
+    public int getPendingCount() {
+        return this.pending.size();
+    }
+
+    public long getRequestedCount() {
+        return this.requestedCount.get();
+    }
+
+    public long getLoadedCount() {
+        return this.loadedCount.get();
+    }
+
+    public long getCancelledCount() {
+        return this.cancelledCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Prefetch requested: " + getRequestedCount() + " | loaded: " + getLoadedCount() + " | cancelled: "
+                + getCancelledCount() + " | pending: " + getPendingCount();
+    }
+
+}
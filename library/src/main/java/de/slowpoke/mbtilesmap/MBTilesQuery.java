@@ -0,0 +1,47 @@
+package de.slowpoke.mbtilesmap;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+
+/**
+ * Runs a query with integer arguments. {@link SQLiteDatabase#rawQuery(String, String[])}
+ * binds every argument as text, which SQLite has to convert back for each
+ * comparison with an integer column and which needs a string per argument.
+ * This factory binds the arguments as integers to the query before the
+ * cursor is created.
+ *
+ * @author Brian
+ */
+final class MBTilesQuery implements SQLiteDatabase.CursorFactory {
+
+    private final long[] args;
+
+    private MBTilesQuery(final long[] args) {
+        this.args = args;
+    }
+
+    /**
+     * Run a query.
+     *
+     * @param database the database to query
+     * @param sql      the query with one <code>?</code> per argument
+     * @param args     the arguments, bound as integers
+     * @return a cursor positioned before the first row
+     */
+    static Cursor query(final SQLiteDatabase database, final String sql, final long... args) {
+        return database.rawQueryWithFactory(new MBTilesQuery(args), sql, null, null);
+    }
+
+    @Override
+    public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+        for (int i = 0; i < this.args.length; i++) {
+            query.bindLong(i + 1, this.args[i]);
+        }
+
+        return new SQLiteCursor(driver, editTable, query);
+    }
+
+}
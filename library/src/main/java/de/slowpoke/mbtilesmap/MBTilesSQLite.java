@@ -1,5 +1,6 @@
 package de.slowpoke.mbtilesmap;
 
+import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 
@@ -18,12 +19,78 @@ public class MBTilesSQLite {
             + IMBTiles.TABLE_NAME + " (" + IMBTiles.COL_ZOOM_LEVEL + ", " + IMBTiles.COL_TILE_COLUMN + ", "
             + IMBTiles.COL_TILE_ROW + ")";
 
-    private final static String CREATE_METADATA_10 = "CREATE TABLE" + IMetadata.TABLE_NAME + "( "
+    private final static String CREATE_METADATA_10 = "CREATE TABLE " + IMetadata.TABLE_NAME + "( "
             + IMetadata.COL_METADATA_NAME + " TEXT, " + IMetadata.COL_METADATA_VALUE + " TEXT " + ")";
 
     private final static String CREATE_INDEX_METADATA_10 = "CREATE UNIQUE INDEX " + IMetadata.TABLE_NAME + "_index ON "
             + IMetadata.TABLE_NAME + "( " + IMetadata.COL_METADATA_NAME + ")";
 
+    /**
+     * Table of the deduplicated layout mapping coordinates to images.
+     */
+    public final static String TABLE_MAP = "map";
+
+    /**
+     * Table of the deduplicated layout holding every distinct image once.
+     */
+    public final static String TABLE_IMAGES = "images";
+
+    /**
+     * Column of {@link #TABLE_MAP} and {@link #TABLE_IMAGES} referencing an
+     * image.
+     */
+    public final static String COL_TILE_ID = "tile_id";
+
+    private final static String CREATE_MAP_10 = "CREATE TABLE " + TABLE_MAP + " (" + IMBTiles.COL_ZOOM_LEVEL
+            + " INTEGER, " + IMBTiles.COL_TILE_COLUMN + " INTEGER, " + IMBTiles.COL_TILE_ROW + " INTEGER, "
+            + COL_TILE_ID + " TEXT" + ")";
+
+    private final static String CREATE_INDEX_MAP_10 = "CREATE UNIQUE INDEX " + TABLE_MAP + "_index ON " + TABLE_MAP
+            + " (" + IMBTiles.COL_ZOOM_LEVEL + ", " + IMBTiles.COL_TILE_COLUMN + ", " + IMBTiles.COL_TILE_ROW + ")";
+
+    private final static String CREATE_IMAGES_10 = "CREATE TABLE " + TABLE_IMAGES + " (" + IMBTiles.COL_TILE_DATA
+            + " BLOB, " + COL_TILE_ID + " TEXT" + ")";
+
+    private final static String CREATE_INDEX_IMAGES_10 = "CREATE UNIQUE INDEX " + TABLE_IMAGES + "_id ON "
+            + TABLE_IMAGES + " (" + COL_TILE_ID + ")";
+
+    private final static String CREATE_VIEW_TILES_10 = "CREATE VIEW " + IMBTiles.TABLE_NAME + " AS SELECT "
+            + TABLE_MAP + "." + IMBTiles.COL_ZOOM_LEVEL + " AS " + IMBTiles.COL_ZOOM_LEVEL + ", "
+            + TABLE_MAP + "." + IMBTiles.COL_TILE_COLUMN + " AS " + IMBTiles.COL_TILE_COLUMN + ", "
+            + TABLE_MAP + "." + IMBTiles.COL_TILE_ROW + " AS " + IMBTiles.COL_TILE_ROW + ", "
+            + TABLE_IMAGES + "." + IMBTiles.COL_TILE_DATA + " AS " + IMBTiles.COL_TILE_DATA + " FROM " + TABLE_MAP
+            + " JOIN " + TABLE_IMAGES + " ON " + TABLE_IMAGES + "." + COL_TILE_ID + " = " + TABLE_MAP + "."
+            + COL_TILE_ID;
+
+    /**
+     * Table of the clustered layout holding the tiles in the order of
+     * {@link #COL_TILE_KEY}.
+     */
+    public final static String TABLE_CLUSTERED = "tiles_clustered";
+
+    /**
+     * Primary key of {@link #TABLE_CLUSTERED}, see
+     * {@link MBTilesTileKey#hilbert(int, int, int)}.
+     */
+    public final static String COL_TILE_KEY = "tile_key";
+
+    // an INTEGER PRIMARY KEY is the rowid, which orders the rows of the table b-tree
+    private final static String CREATE_CLUSTERED_10 = "CREATE TABLE " + TABLE_CLUSTERED + " (" + COL_TILE_KEY
+            + " INTEGER PRIMARY KEY, " + IMBTiles.COL_ZOOM_LEVEL + " INTEGER, " + IMBTiles.COL_TILE_COLUMN
+            + " INTEGER, " + IMBTiles.COL_TILE_ROW + " INTEGER, " + IMBTiles.COL_TILE_DATA + " BLOB" + ")";
+
+    private final static String CREATE_INDEX_CLUSTERED_10 = "CREATE UNIQUE INDEX " + TABLE_CLUSTERED + "_index ON "
+            + TABLE_CLUSTERED + " (" + IMBTiles.COL_ZOOM_LEVEL + ", " + IMBTiles.COL_TILE_COLUMN + ", "
+            + IMBTiles.COL_TILE_ROW + ")";
+
+    private final static String CREATE_VIEW_CLUSTERED_10 = "CREATE VIEW " + IMBTiles.TABLE_NAME + " AS SELECT "
+            + IMBTiles.COL_ZOOM_LEVEL + ", " + IMBTiles.COL_TILE_COLUMN + ", " + IMBTiles.COL_TILE_ROW + ", "
+            + IMBTiles.COL_TILE_DATA + " FROM " + TABLE_CLUSTERED;
+
+    private final static String SELECT_LAYOUT = "SELECT name FROM sqlite_master WHERE type='table' AND name IN ('"
+            + TABLE_IMAGES + "', '" + TABLE_CLUSTERED + "') AND EXISTS (SELECT 1 FROM sqlite_master WHERE "
+            + "type='view' AND name='" + IMBTiles.TABLE_NAME + "')";
+
     /**
      * Create the metadata table.
      *
@@ -81,6 +148,84 @@ public class MBTilesSQLite {
         }
     }
 
+    /**
+     * Create the tables, indexes and the tiles view of a layout. For
+     * {@link MBTilesLayout#FLAT} this is the same as
+     * {@link #createTableTiles(SQLiteDatabase, MBTilesVersion)} and
+     * {@link #createIndexTiles(SQLiteDatabase, MBTilesVersion)}. A new
+     * database is switched to incremental auto vacuum first, see
+     * {@link #setIncrementalVacuum(SQLiteDatabase)}.
+     *
+     * @param database a writable databse
+     * @param version  the mbtiles version
+     * @param layout   the storage layout
+     * @throws SQLException
+     */
+    public static void createTiles(SQLiteDatabase database, MBTilesVersion version, MBTilesLayout layout)
+            throws SQLException {
+        setIncrementalVacuum(database);
+
+        if (layout == null || layout == MBTilesLayout.FLAT) {
+            createTableTiles(database, version);
+            createIndexTiles(database, version);
+            return;
+        }
+
+        switch (version) {
+            case VERSION_1_0:
+            case VERSION_1_1:
+                if (layout == MBTilesLayout.DEDUPLICATED) {
+                    database.execSQL(CREATE_MAP_10);
+                    database.execSQL(CREATE_INDEX_MAP_10);
+                    database.execSQL(CREATE_IMAGES_10);
+                    database.execSQL(CREATE_INDEX_IMAGES_10);
+                    database.execSQL(CREATE_VIEW_TILES_10);
+                } else {
+                    database.execSQL(CREATE_CLUSTERED_10);
+                    database.execSQL(CREATE_INDEX_CLUSTERED_10);
+                    database.execSQL(CREATE_VIEW_CLUSTERED_10);
+                }
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Switch a new database to incremental auto vacuum, so pages freed by
+     * replaced or deleted tiles can be returned to the file system without
+     * rebuilding the file. This only takes effect before the first table has
+     * been created, afterwards it is ignored until the next
+     * <code>VACUUM</code>.
+     *
+     * @param database a writable databse
+     * @throws SQLException
+     */
+    public static void setIncrementalVacuum(SQLiteDatabase database) throws SQLException {
+        database.execSQL("PRAGMA auto_vacuum=" + MBTiles.AUTO_VACUUM_INCREMENTAL);
+    }
+
+    /**
+     * Find out how the tiles of a database are stored.
+     *
+     * @param database
+     * @return {@link MBTilesLayout#DEDUPLICATED} if tiles is a view over the
+     * map and images tables, {@link MBTilesLayout#CLUSTERED} if it is a view
+     * over the clustered table, else {@link MBTilesLayout#FLAT}
+     */
+    public static MBTilesLayout getLayout(SQLiteDatabase database) {
+        final Cursor c = database.rawQuery(SELECT_LAYOUT, null);
+        try {
+            if (!c.moveToFirst()) {
+                return MBTilesLayout.FLAT;
+            }
+            return TABLE_IMAGES.equals(c.getString(0)) ? MBTilesLayout.DEDUPLICATED : MBTilesLayout.CLUSTERED;
+        } finally {
+            c.close();
+        }
+    }
+
     /**
      * Create an index for the tiles table.
      *
@@ -0,0 +1,416 @@
+package de.slowpoke.mbtilesmap;
+
+import android.database.sqlite.SQLiteStatement;
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import de.slowpoke.mbtilesmap.MBTilesMetadata.TileFormat;
+
+/**
+ * Fills {@link MBTiles} with the tiles of a region from another
+ * {@link ITileSource}, e.g. a downloader, another archive or a
+ * {@link MBTilesDirectorySource}.
+ * <p/>
+ * The tiles are enumerated lazily by zoom level, column and row. Tiles which
+ * exist already are skipped, the others are fetched, and optionally encoded,
+ * by a pool of threads while the calling thread writes the results in the
+ * order of the enumeration. With every committed batch the position is
+ * checkpointed in the metadata table in the same transaction, so a seeder for
+ * the same region and zoom range continues where an interrupted one stopped.
+ * The checkpoint is removed once all tiles have been processed.
+ *
+ * @author Brian
+ */
+public class MBTilesSeeder {
+
+    /**
+     * Metadata entry holding the region, the zoom range and the last
+     * processed tile of an unfinished run.
+     */
+    public final static String KEY_CHECKPOINT = "seed.checkpoint";
+
+    public final static int DEFAULT_THREADS = 4;
+    public final static int DEFAULT_BATCH_SIZE = 500;
+
+    /**
+     * A tile which has been enumerated but not yet written.
+     */
+    private static class Job {
+        final int x;
+        final int y;
+        final int z;
+        // null if the tile exists already
+        final Future<byte[]> result;
+
+        Job(int x, int y, int z, Future<byte[]> result) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.result = result;
+        }
+
+        boolean isDone() {
+            return this.result == null || this.result.isDone();
+        }
+    }
+
+    private final MBTiles tiles;
+    private final ITileSource source;
+    private final MBTilesBounds bounds;
+    private final int minZoom;
+    private final int maxZoom;
+    private final String job;
+
+    private int threads = DEFAULT_THREADS;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private boolean encode;
+
+    private volatile boolean cancelled;
+    private volatile long processed;
+    private volatile long written;
+    private volatile long skipped;
+    private volatile long missing;
+    private volatile long failed;
+
+    private int uncommitted;
+    private Job last;
+
+    /**
+     * @param tiles   the writable tiles to fill
+     * @param source  the tiles to copy
+     * @param bounds  the region to fill, might be <code>null</code> for the
+     *                whole world
+     * @param minZoom the lowest zoom level to fill
+     * @param maxZoom the highest zoom level to fill
+     */
+    public MBTilesSeeder(MBTiles tiles, ITileSource source, MBTilesBounds bounds, int minZoom, int maxZoom) {
+        if (minZoom < 0 || maxZoom > MBTilesBounds.MAX_ZOOM || minZoom > maxZoom) {
+            throw new IllegalArgumentException("Invalid zoom range " + minZoom + "-" + maxZoom);
+        }
+
+        this.tiles = tiles;
+        this.source = source;
+        this.bounds = bounds;
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+        this.job = minZoom + ";" + maxZoom + ";" + (bounds == null ? "" : bounds.toString());
+    }
+
+    /**
+     * @param threads the number of threads fetching tiles from the source
+     */
+    public void setThreads(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @param batchSize the number of tiles per transaction and checkpoint
+     */
+    public void setBatchSize(final int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param encode <code>true</code> to fetch bitmaps with
+     *               {@link ITileSource#getTile(int, int, int)} and compress
+     *               them with the format of the metadata and the
+     *               {@link MBTiles#getQuality() quality} of the tiles,
+     *               <code>false</code> (the default) to copy the data of
+     *               {@link ITileSource#getTileBytes(int, int, int)} as it is
+     */
+    public void setEncode(final boolean encode) {
+        this.encode = encode;
+    }
+
+    /**
+     * Fill the tiles. Returns when all tiles have been processed, after
+     * {@link #cancel()} or with the first exception of the database; either
+     * way the committed tiles and the checkpoint match. Tiles which could not
+     * be fetched are left out and counted by {@link #getFailedCount()}. A run
+     * which resumes from the checkpoint starts after it, so it doesn't retry
+     * them; only a run after a completed one, which starts from the
+     * beginning and skips the existing tiles, fetches them again.
+     *
+     * @return the number of tiles written
+     * @throws InterruptedException if interrupted while waiting for the
+     *                              source, the current batch is discarded
+     */
+    public long run() throws InterruptedException {
+        final TileFormat format = (this.tiles.getMetadata() == null) ? null : this.tiles.getMetadata().format;
+        if (this.encode && format == null) {
+            throw new IllegalStateException("The tiles have no format to encode with");
+        }
+        final int quality = this.tiles.getQuality();
+
+        final TileRange range = new TileRange(this.bounds, this.minZoom, this.maxZoom);
+        resume(range);
+        // the tiles would be hidden by the bounds of the metadata otherwise
+        this.tiles.extendBounds(this.bounds);
+
+        final int capacity = this.threads * 4;
+        final ArrayDeque<Job> queue = new ArrayDeque<Job>(capacity);
+        final ThreadPoolExecutor fetchers = new ThreadPoolExecutor(this.threads, this.threads, 0L,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new MBTilesIngestPipeline.WorkerThreadFactory("MBTiles-seeder-"));
+
+        final MBTilesWriter writer = this.tiles.openWriter(Integer.MAX_VALUE);
+        final SQLiteStatement exists = this.tiles.compileTileExists();
+        boolean done = false;
+        try {
+            while (!this.cancelled && range.next()) {
+                final int x = range.x, y = range.y, z = range.z;
+                if (this.tiles.hasTile(exists, x, y, z)) {
+                    this.skipped++;
+                    queue.add(new Job(x, y, z, null));
+                } else {
+                    queue.add(new Job(x, y, z, fetchers.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() {
+                            return fetch(x, y, z, format, quality);
+                        }
+                    })));
+                }
+
+                while (!queue.isEmpty() && (queue.size() >= capacity || queue.peek().isDone())) {
+                    write(writer, queue.poll());
+                }
+            }
+
+            while (!queue.isEmpty()) {
+                write(writer, queue.poll());
+            }
+
+            if (this.cancelled) {
+                checkpoint();
+            } else {
+                this.tiles.deleteMetadata(KEY_CHECKPOINT);
+            }
+            done = true;
+        } finally {
+            fetchers.shutdownNow();
+            exists.close();
+            if (done) {
+                writer.close();
+            } else {
+                writer.abort();
+            }
+        }
+
+        return this.written;
+    }
+
+    /**
+     * Stop enumerating tiles. {@link #run()} writes the tiles which are
+     * being fetched, saves the checkpoint and returns.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    /**
+     * Continue after the checkpoint, if there is one for the same job.
+     */
+    private void resume(final TileRange range) {
+        final String checkpoint = this.tiles.readMetadata(KEY_CHECKPOINT);
+        if (checkpoint == null) {
+            return;
+        }
+
+        final int split = checkpoint.lastIndexOf(';');
+        if (split < 0 || !this.job.equals(checkpoint.substring(0, split))) {
+            return;
+        }
+
+        try {
+            final String[] position = checkpoint.substring(split + 1).split(",");
+            if (position.length == 3) {
+                range.seek(Integer.parseInt(position[0]), Integer.parseInt(position[1]),
+                        Integer.parseInt(position[2]));
+            }
+        } catch (NumberFormatException ignore) {
+        }
+    }
+
+    private byte[] fetch(final int x, final int y, final int z, final TileFormat format, final int quality) {
+        if (!this.encode) {
+            return this.source.getTileBytes(x, y, z);
+        }
+
+        // not recycled, the source might keep the bitmap in a cache
+        final Bitmap tile = this.source.getTile(x, y, z);
+        return (tile == null) ? null : MBTiles.compress(tile, format, quality);
+    }
+
+    /**
+     * Write the result of a job and commit with a checkpoint once a batch is
+     * complete.
+     */
+    private void write(final MBTilesWriter writer, final Job job) throws InterruptedException {
+        if (job.result != null) {
+            try {
+                final byte[] data = job.result.get();
+                if (data == null) {
+                    this.missing++;
+                } else if (writer.setTileBytes(data, job.x, job.y, job.z)) {
+                    this.written++;
+                } else {
+                    this.failed++;
+                }
+            } catch (ExecutionException e) {
+                this.failed++;
+            }
+        }
+
+        this.processed++;
+        this.last = job;
+        if (++this.uncommitted >= this.batchSize) {
+            checkpoint();
+            writer.commit();
+        }
+    }
+
+    /**
+     * Save the last processed tile, in the transaction of the writer.
+     */
+    private void checkpoint() {
+        if (this.last != null) {
+            this.tiles.writeMetadata(KEY_CHECKPOINT, this.job + ";" + this.last.z + "," + this.last.x + ","
+                    + this.last.y);
+        }
+        this.uncommitted = 0;
+    }
+
+    /**
+     * @return the number of tiles of the region and zoom range
+     */
+    public long getTotalCount() {
+        return new TileRange(this.bounds, this.minZoom, this.maxZoom).count();
+    }
+
+    /**
+     * @return the number of tiles processed by this seeder, without those
+     * skipped by resuming from a checkpoint
+     */
+    public long getProcessedCount() {
+        return this.processed;
+    }
+
+    public long getWrittenCount() {
+        return this.written;
+    }
+
+    /**
+     * @return the number of tiles which existed already
+     */
+    public long getSkippedCount() {
+        return this.skipped;
+    }
+
+    /**
+     * @return the number of tiles which the source doesn't have
+     */
+    public long getMissingCount() {
+        return this.missing;
+    }
+
+    /**
+     * @return the number of tiles which could not be fetched, encoded or
+     * written
+     */
+    public long getFailedCount() {
+        return this.failed;
+    }
+
+    /**
+     * Enumerates the tiles of a region by zoom level, column and row.
+     */
+    private static class TileRange {
+
+        private final MBTilesBounds bounds;
+        private final int maxZoom;
+
+        int x, y, z;
+        private int minX, maxX, minY, maxY;
+
+        TileRange(MBTilesBounds bounds, int minZoom, int maxZoom) {
+            this.bounds = bounds;
+            this.maxZoom = maxZoom;
+            this.z = minZoom - 1;
+        }
+
+        /**
+         * Move to the next tile.
+         *
+         * @return <code>false</code> if there are no more tiles
+         */
+        boolean next() {
+            if (this.y < this.maxY) {
+                this.y++;
+                return true;
+            }
+            if (this.x < this.maxX) {
+                this.x++;
+                this.y = this.minY;
+                return true;
+            }
+
+            while (this.z < this.maxZoom) {
+                zoom(++this.z);
+                this.x = this.minX;
+                this.y = this.minY;
+                if (this.minX <= this.maxX && this.minY <= this.maxY) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Continue after the given tile.
+         */
+        void seek(final int z, final int x, final int y) {
+            if (z <= this.z || z > this.maxZoom) {
+                return;
+            }
+            zoom(z);
+            this.z = z;
+            this.x = Math.max(this.minX, Math.min(x, this.maxX));
+            this.y = Math.max(this.minY, Math.min(y, this.maxY));
+        }
+
+        long count() {
+            long count = 0;
+            for (int z = this.z + 1; z <= this.maxZoom; z++) {
+                zoom(z);
+                count += (long) Math.max(0, this.maxX - this.minX + 1) * Math.max(0, this.maxY - this.minY + 1);
+            }
+            return count;
+        }
+
+        private void zoom(final int z) {
+            if (this.bounds == null) {
+                this.minX = this.minY = 0;
+                this.maxX = this.maxY = (1 << z) - 1;
+            } else {
+                this.minX = this.bounds.getMinColumn(z);
+                this.maxX = this.bounds.getMaxColumn(z);
+                this.minY = this.bounds.getMinRow(z);
+                this.maxY = this.bounds.getMaxRow(z);
+            }
+        }
+    }
+
+}
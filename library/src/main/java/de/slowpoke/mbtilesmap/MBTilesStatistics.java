@@ -0,0 +1,258 @@
+package de.slowpoke.mbtilesmap;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Number of tiles, their size in bytes and the covered tile ranges per zoom
+ * level of one {@link MBTiles}. The values are computed with one pass over
+ * the tiles index and kept in the metadata table as <code>stats.&lt;z&gt;</code>
+ * entries, which end up in {@link MBTilesMetadata#extra} when the archive is
+ * opened again. Tiles written through {@link MBTiles} are added as they are
+ * written, so every value is a lookup.
+ * <p/>
+ * Tiles written by other means, or by an aborted {@link MBTilesWriter}, are
+ * not accounted for until the statistics are computed again.
+ *
+ * @author Brian
+ */
+public class MBTilesStatistics implements IMBTiles {
+
+    /**
+     * Prefix of the metadata entries, followed by the zoom level.
+     */
+    public final static String KEY_PREFIX = "stats.";
+
+    private final static String SELECT_STATISTICS = "SELECT " + COL_ZOOM_LEVEL + ", COUNT(*), SUM(LENGTH("
+            + COL_TILE_DATA + ")), MIN(" + COL_TILE_COLUMN + "), MAX(" + COL_TILE_COLUMN + "), MIN(" + COL_TILE_ROW
+            + "), MAX(" + COL_TILE_ROW + ") FROM " + TABLE_NAME + " GROUP BY " + COL_ZOOM_LEVEL;
+
+    private final static int ZOOMS = MBTilesBounds.MAX_ZOOM + 1;
+
+    private final long[] counts = new long[ZOOMS];
+    private final long[] bytes = new long[ZOOMS];
+    // [minColumn, maxColumn, minRow, maxRow] per zoom level
+    private final int[] ranges = new int[ZOOMS * 4];
+
+    private boolean dirty;
+
+    private MBTilesStatistics() {
+    }
+
+    /**
+     * Compute the statistics with one pass over the tiles.
+     *
+     * @param database a database containing the tiles table
+     * @return the statistics
+     */
+    public static MBTilesStatistics compute(SQLiteDatabase database) {
+        final MBTilesStatistics stats = new MBTilesStatistics();
+
+        final Cursor c = database.rawQuery(SELECT_STATISTICS, null);
+        try {
+            while (c.moveToNext()) {
+                final int z = c.getInt(0);
+                if (z >= 0 && z < ZOOMS) {
+                    stats.set(z, c.getLong(1), c.getLong(2), c.getInt(3), c.getInt(4), c.getInt(5), c.getInt(6));
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        stats.dirty = true;
+        return stats;
+    }
+
+    /**
+     * Read the statistics from metadata entries.
+     *
+     * @param extra the additional metadata entries, might be
+     *              <code>null</code>
+     * @return the statistics or <code>null</code> if there are no entries
+     */
+    public static MBTilesStatistics fromMetadata(Map<String, String> extra) {
+        if (extra == null) {
+            return null;
+        }
+
+        MBTilesStatistics stats = null;
+        for (Map.Entry<String, String> e : extra.entrySet()) {
+            if (!e.getKey().startsWith(KEY_PREFIX)) {
+                continue;
+            }
+
+            try {
+                final int z = Integer.parseInt(e.getKey().substring(KEY_PREFIX.length()));
+                final String[] values = e.getValue().split(",");
+                if (z < 0 || z >= ZOOMS || values.length != 6) {
+                    continue;
+                }
+                if (stats == null) {
+                    stats = new MBTilesStatistics();
+                }
+                stats.set(z, Long.parseLong(values[0]), Long.parseLong(values[1]), Integer.parseInt(values[2]),
+                        Integer.parseInt(values[3]), Integer.parseInt(values[4]), Integer.parseInt(values[5]));
+            } catch (NumberFormatException ignore) {
+            }
+        }
+
+        return stats;
+    }
+
+    /**
+     * @return the metadata entries of all zoom levels with tiles
+     */
+    public synchronized Map<String, String> toMetadata() {
+        final LinkedHashMap<String, String> extra = new LinkedHashMap<String, String>();
+        for (int z = 0; z < ZOOMS; z++) {
+            if (this.counts[z] > 0) {
+                final int i = z * 4;
+                extra.put(KEY_PREFIX + z, this.counts[z] + "," + this.bytes[z] + "," + this.ranges[i] + ","
+                        + this.ranges[i + 1] + "," + this.ranges[i + 2] + "," + this.ranges[i + 3]);
+            }
+        }
+        return extra;
+    }
+
+    private void set(int z, long count, long bytes, int minColumn, int maxColumn, int minRow, int maxRow) {
+        final int i = z * 4;
+        this.counts[z] = count;
+        this.bytes[z] = bytes;
+        this.ranges[i] = minColumn;
+        this.ranges[i + 1] = maxColumn;
+        this.ranges[i + 2] = minRow;
+        this.ranges[i + 3] = maxRow;
+    }
+
+    /**
+     * Account for a written tile.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @param size     the size of the tile data
+     * @param replaced the size of the tile which has been replaced,
+     *                 <code>-1</code> if there was none
+     */
+    synchronized void add(final int x, final int y, final int z, final int size, final int replaced) {
+        if (z < 0 || z >= ZOOMS) {
+            return;
+        }
+
+        final int i = z * 4;
+        if (replaced >= 0) {
+            this.bytes[z] += size - replaced;
+        } else if (this.counts[z]++ == 0) {
+            this.bytes[z] = size;
+            this.ranges[i] = this.ranges[i + 1] = x;
+            this.ranges[i + 2] = this.ranges[i + 3] = y;
+        } else {
+            this.bytes[z] += size;
+            this.ranges[i] = Math.min(this.ranges[i], x);
+            this.ranges[i + 1] = Math.max(this.ranges[i + 1], x);
+            this.ranges[i + 2] = Math.min(this.ranges[i + 2], y);
+            this.ranges[i + 3] = Math.max(this.ranges[i + 3], y);
+        }
+        this.dirty = true;
+    }
+
+    public synchronized long getTileCount(final int z) {
+        return (z < 0 || z >= ZOOMS) ? 0 : this.counts[z];
+    }
+
+    /**
+     * @param z
+     * @return the size of the tile data of the zoom level in bytes
+     */
+    public synchronized long getByteCount(final int z) {
+        return (z < 0 || z >= ZOOMS) ? 0 : this.bytes[z];
+    }
+
+    public synchronized long getTileCount() {
+        long total = 0;
+        for (long count : this.counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    public synchronized long getByteCount() {
+        long total = 0;
+        for (long size : this.bytes) {
+            total += size;
+        }
+        return total;
+    }
+
+    /**
+     * @param z
+     * @return the first column with tiles, only meaningful if there are tiles
+     */
+    public synchronized int getMinColumn(final int z) {
+        return this.ranges[z * 4];
+    }
+
+    public synchronized int getMaxColumn(final int z) {
+        return this.ranges[z * 4 + 1];
+    }
+
+    /**
+     * @param z
+     * @return the first row (TMS) with tiles, only meaningful if there are
+     * tiles
+     */
+    public synchronized int getMinRow(final int z) {
+        return this.ranges[z * 4 + 2];
+    }
+
+    public synchronized int getMaxRow(final int z) {
+        return this.ranges[z * 4 + 3];
+    }
+
+    /**
+     * @return the lowest zoom level with tiles or <code>-1</code>
+     */
+    public synchronized int getMinZoom() {
+        for (int z = 0; z < ZOOMS; z++) {
+            if (this.counts[z] > 0) {
+                return z;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the highest zoom level with tiles or <code>-1</code>
+     */
+    public synchronized int getMaxZoom() {
+        for (int z = ZOOMS - 1; z >= 0; z--) {
+            if (this.counts[z] > 0) {
+                return z;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return <code>true</code> if the statistics changed since they were
+     * computed or saved
+     */
+    public synchronized boolean isDirty() {
+        return this.dirty;
+    }
+
+    synchronized void setDirty(boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Tiles: " + getTileCount() + " | Bytes: " + getByteCount() + " | Zoom: " + getMinZoom() + "-"
+                + getMaxZoom();
+    }
+
+}
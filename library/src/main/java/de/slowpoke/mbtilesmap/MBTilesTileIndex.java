@@ -0,0 +1,309 @@
+package de.slowpoke.mbtilesmap;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An in-memory Bloom filter over the coordinates of all tiles of one
+ * {@link MBTiles}. It answers "definitely missing" without touching the
+ * database, which makes lookups on sparse archives cheap. There are no false
+ * negatives, so tiles which have been written must be {@link #add(int, int, int) added}.
+ * Once more tiles have been added than the filter was sized for, it
+ * {@link #isFull() is full} and should be built again with more room.
+ * <p/>
+ * The filter can be saved to a sidecar file next to the archive. It is only
+ * loaded again if the archive (and its write-ahead log) has not changed since.
+ *
+ * @author Brian
+ */
+public class MBTilesTileIndex implements IMBTiles {
+
+    /**
+     * Bits per tile, about 1% false positives with seven hashes.
+     */
+    public final static int DEFAULT_BITS_PER_TILE = 10;
+
+    private final static int HASH_COUNT = 7;
+    private final static int MIN_TILES = 1024;
+    private final static int MAGIC = 0x4D425449;
+    private final static int FILE_VERSION = 3;
+
+    private final static String COUNT_TILES = "SELECT COUNT(*) FROM " + TABLE_NAME;
+    private final static String SELECT_COORDINATES = "SELECT " + COL_ZOOM_LEVEL + ", " + COL_TILE_COLUMN + ", "
+            + COL_TILE_ROW + " FROM " + TABLE_NAME;
+
+    private final AtomicLongArray words;
+    private final long bits;
+    private final long capacity;
+    private final AtomicLong count;
+
+    private volatile boolean dirty;
+
+    private MBTilesTileIndex(AtomicLongArray words, long capacity, long count) {
+        this.words = words;
+        this.bits = (long) words.length() * 64;
+        this.capacity = capacity;
+        this.count = new AtomicLong(count);
+    }
+
+    /**
+     * Create an empty filter.
+     *
+     * @param expectedTiles the number of tiles expected in the archive
+     * @param bitsPerTile   the number of bits per tile, see
+     *                      {@link #DEFAULT_BITS_PER_TILE}
+     */
+    public MBTilesTileIndex(long expectedTiles, int bitsPerTile) {
+        this(new AtomicLongArray((int) Math.min(Integer.MAX_VALUE,
+                (Math.max(expectedTiles, MIN_TILES) * bitsPerTile + 63) / 64)), Math.max(expectedTiles, MIN_TILES), 0);
+    }
+
+    /**
+     * Build a filter with one scan over the tiles index.
+     *
+     * @param database    a database containing the tiles table
+     * @param bitsPerTile the number of bits per tile
+     * @return the new filter
+     */
+    public static MBTilesTileIndex build(SQLiteDatabase database, int bitsPerTile) {
+        return build(database, bitsPerTile, 0);
+    }
+
+    /**
+     * Build a filter with one scan over the tiles index, with room for at
+     * least the given number of tiles.
+     *
+     * @param database    a database containing the tiles table
+     * @param bitsPerTile the number of bits per tile
+     * @param minTiles    the number of tiles to size the filter for if the
+     *                    archive has less
+     * @return the new filter
+     */
+    public static MBTilesTileIndex build(SQLiteDatabase database, int bitsPerTile, long minTiles) {
+        final SQLiteStatement countTiles = database.compileStatement(COUNT_TILES);
+        final long count;
+        try {
+            count = countTiles.simpleQueryForLong();
+        } finally {
+            countTiles.close();
+        }
+        final MBTilesTileIndex index = new MBTilesTileIndex(Math.max(count, minTiles), bitsPerTile);
+
+        final Cursor c = database.rawQuery(SELECT_COORDINATES, null);
+        try {
+            while (c.moveToNext()) {
+                index.add(c.getInt(1), c.getInt(2), c.getInt(0));
+            }
+        } finally {
+            c.close();
+        }
+
+        index.dirty = true;
+        return index;
+    }
+
+    /**
+     * Load a filter from a sidecar file, if it is still valid for the archive.
+     *
+     * @param sidecar  the sidecar file
+     * @param database the archive file
+     * @return the filter or <code>null</code> if the sidecar is missing,
+     * unreadable or outdated
+     */
+    public static MBTilesTileIndex load(File sidecar, File database) {
+        if (!sidecar.isFile()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+
+            if (in.readInt() != MAGIC || in.readInt() != FILE_VERSION) {
+                return null;
+            }
+
+            final long[] fingerprint = fingerprint(database);
+            for (long value : fingerprint) {
+                if (in.readLong() != value) {
+                    return null;
+                }
+            }
+
+            final long capacity = in.readLong();
+            final long count = in.readLong();
+            final int length = in.readInt();
+            final AtomicLongArray words = new AtomicLongArray(length);
+            for (int i = 0; i < length; i++) {
+                words.set(i, in.readLong());
+            }
+
+            return new MBTilesTileIndex(words, capacity, count);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Save the filter to a sidecar file. Call it after all writes to the
+     * archive have been committed, else the sidecar will be outdated.
+     *
+     * @param sidecar  the sidecar file
+     * @param database the archive file
+     * @throws IOException
+     */
+    public void save(File sidecar, File database) throws IOException {
+        final File tmp = new File(sidecar.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FILE_VERSION);
+            for (long value : fingerprint(database)) {
+                out.writeLong(value);
+            }
+
+            out.writeLong(this.capacity);
+            out.writeLong(this.count.get());
+            final int length = this.words.length();
+            out.writeInt(length);
+            for (int i = 0; i < length; i++) {
+                out.writeLong(this.words.get(i));
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(sidecar)) {
+            tmp.delete();
+            throw new IOException("Could not write " + sidecar);
+        }
+        this.dirty = false;
+    }
+
+    /**
+     * @param x
+     * @param y
+     * @param z
+     * @return <code>false</code> if the tile definitely doesn't exist
+     */
+    public boolean mightContain(final int x, final int y, final int z) {
+        final long key = MBTilesTileKey.pack(x, y, z);
+        final long h1 = mix(key);
+        final long h2 = mix(key ^ 0x9E3779B97F4A7C15L) | 1;
+
+        for (int i = 0; i < HASH_COUNT; i++) {
+            final long bit = ((h1 + i * h2) & Long.MAX_VALUE) % this.bits;
+            if ((this.words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record that a tile exists.
+     *
+     * @param x
+     * @param y
+     * @param z
+     */
+    public void add(final int x, final int y, final int z) {
+        final long key = MBTilesTileKey.pack(x, y, z);
+        final long h1 = mix(key);
+        final long h2 = mix(key ^ 0x9E3779B97F4A7C15L) | 1;
+
+        boolean added = false;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            final long bit = ((h1 + i * h2) & Long.MAX_VALUE) % this.bits;
+            final int word = (int) (bit >>> 6);
+            final long mask = 1L << bit;
+
+            long current;
+            while (((current = this.words.get(word)) & mask) == 0) {
+                if (this.words.compareAndSet(word, current, current | mask)) {
+                    added = true;
+                    break;
+                }
+            }
+        }
+
+        // a tile which sets no new bit is most likely there already
+        if (added) {
+            this.count.incrementAndGet();
+            this.dirty = true;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if more tiles have been added than the filter
+     * has been sized for, so its false positive rate is getting worse
+     */
+    public boolean isFull() {
+        return this.count.get() > this.capacity;
+    }
+
+    /**
+     * @return the number of tiles added, tiles which happened to set no new
+     * bit are not counted
+     */
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * @return <code>true</code> if tiles have been added since the filter was
+     * built, loaded or saved
+     */
+    public boolean isDirty() {
+        return this.dirty;
+    }
+
+    /**
+     * @return the size of the filter in bytes
+     */
+    public long getByteCount() {
+        return this.bits / 8;
+    }
+
+    /**
+     * Size and modification time of the archive and the size of its
+     * write-ahead log. An empty log is created when the archive is opened, so
+     * its modification time is left out like in {@link MBTilesValidationCache}.
+     */
+    private static long[] fingerprint(File database) {
+        final File wal = new File(database.getPath() + "-wal");
+        return new long[]{database.length(), database.lastModified(), wal.length()};
+    }
+
+    /**
+     * MurmurHash3 finalizer.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
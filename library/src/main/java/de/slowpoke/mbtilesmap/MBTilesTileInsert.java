@@ -0,0 +1,132 @@
+package de.slowpoke.mbtilesmap;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Writes single tiles through precompiled {@link SQLiteStatement}s. Existing
+ * tiles with the same coordinates are replaced.
+ * <p/>
+ * In the {@link MBTilesLayout#DEDUPLICATED deduplicated} layout the tile data
+ * is hashed and only stored if no image with the same hash exists yet; the
+ * coordinates are mapped to the hash. Images which are not referenced anymore
+ * after a tile has been replaced are left in place.
+ * <p/>
+ * In the {@link MBTilesLayout#CLUSTERED clustered} layout the row is keyed by
+ * the Hilbert key of the coordinates.
+ *
+ * @author Brian
+ */
+class MBTilesTileInsert implements IMBTiles {
+
+    private final static String INSERT_OR_REPLACE_TILE = "INSERT OR REPLACE INTO " + TABLE_NAME + " ("
+            + COL_ZOOM_LEVEL + ", " + COL_TILE_COLUMN + ", " + COL_TILE_ROW + ", " + COL_TILE_DATA
+            + ") VALUES (?, ?, ?, ?)";
+
+    private final static String INSERT_OR_IGNORE_IMAGE = "INSERT OR IGNORE INTO " + MBTilesSQLite.TABLE_IMAGES
+            + " (" + COL_TILE_DATA + ", " + MBTilesSQLite.COL_TILE_ID + ") VALUES (?, ?)";
+
+    private final static String INSERT_OR_REPLACE_MAP = "INSERT OR REPLACE INTO " + MBTilesSQLite.TABLE_MAP + " ("
+            + COL_ZOOM_LEVEL + ", " + COL_TILE_COLUMN + ", " + COL_TILE_ROW + ", " + MBTilesSQLite.COL_TILE_ID
+            + ") VALUES (?, ?, ?, ?)";
+
+    private final static String INSERT_OR_REPLACE_CLUSTERED = "INSERT OR REPLACE INTO "
+            + MBTilesSQLite.TABLE_CLUSTERED + " (" + MBTilesSQLite.COL_TILE_KEY + ", " + COL_ZOOM_LEVEL + ", "
+            + COL_TILE_COLUMN + ", " + COL_TILE_ROW + ", " + COL_TILE_DATA + ") VALUES (?, ?, ?, ?, ?)";
+
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final SQLiteStatement statement;
+    private final SQLiteStatement image;
+    private final MessageDigest digest;
+    private final boolean clustered;
+
+    /**
+     * Compile the insert statements.
+     *
+     * @param database a writable database containing the tiles
+     * @param layout   the layout of the tiles
+     */
+    MBTilesTileInsert(SQLiteDatabase database, MBTilesLayout layout) {
+        if (layout == MBTilesLayout.DEDUPLICATED) {
+            this.image = database.compileStatement(INSERT_OR_IGNORE_IMAGE);
+            this.statement = database.compileStatement(INSERT_OR_REPLACE_MAP);
+            try {
+                this.digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        } else {
+            this.image = null;
+            this.statement = database.compileStatement(layout == MBTilesLayout.CLUSTERED
+                    ? INSERT_OR_REPLACE_CLUSTERED : INSERT_OR_REPLACE_TILE);
+            this.digest = null;
+        }
+        this.clustered = layout == MBTilesLayout.CLUSTERED;
+    }
+
+    /**
+     * Insert or replace one tile.
+     *
+     * @param data the compressed tile
+     * @param x
+     * @param y
+     * @param z
+     * @return <code>true</code> if the tile has been written
+     */
+    synchronized boolean insert(final byte[] data, final int x, final int y, final int z) {
+        if (this.clustered) {
+            this.statement.bindLong(1, MBTilesTileKey.hilbert(x, y, z));
+            this.statement.bindLong(2, z);
+            this.statement.bindLong(3, x);
+            this.statement.bindLong(4, y);
+            this.statement.bindBlob(5, data);
+            return this.statement.executeInsert() != -1;
+        }
+
+        this.statement.bindLong(1, z);
+        this.statement.bindLong(2, x);
+        this.statement.bindLong(3, y);
+
+        if (this.image == null) {
+            this.statement.bindBlob(4, data);
+        } else {
+            final String id = hash(data);
+            this.image.bindBlob(1, data);
+            this.image.bindString(2, id);
+            // -1 if the image exists already
+            this.image.executeInsert();
+            this.statement.bindString(4, id);
+        }
+
+        return this.statement.executeInsert() != -1;
+    }
+
+    /**
+     * @return the hex encoded MD5 of the data, as used by other tools writing
+     * the deduplicated layout
+     */
+    private String hash(final byte[] data) {
+        final byte[] md5 = this.digest.digest(data);
+        final char[] hex = new char[md5.length * 2];
+        for (int i = 0; i < md5.length; i++) {
+            hex[i * 2] = HEX[(md5[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[md5[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Release the compiled statements.
+     */
+    synchronized void close() {
+        this.statement.close();
+        if (this.image != null) {
+            this.image.close();
+        }
+    }
+
+}
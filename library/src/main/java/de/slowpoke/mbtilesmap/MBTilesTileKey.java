@@ -0,0 +1,84 @@
+package de.slowpoke.mbtilesmap;
+
+/**
+ * Packs tile coordinates into a single <code>long</code>. Keys sort in the
+ * same order as the tiles index, i.e. by zoom level, column and row.
+ *
+ * @author Brian
+ */
+public final class MBTilesTileKey {
+
+    private final static int BITS = 29;
+    private final static long MASK = (1L << BITS) - 1;
+
+    private MBTilesTileKey() {
+    }
+
+    /**
+     * @param x the tile column
+     * @param y the tile row
+     * @param z the zoom level, at most <code>29</code>
+     * @return the packed key
+     */
+    public static long pack(final int x, final int y, final int z) {
+        return ((long) z << (2 * BITS)) | ((x & MASK) << BITS) | (y & MASK);
+    }
+
+    /**
+     * Order tiles along a Hilbert curve per zoom level. Unlike
+     * {@link #pack(int, int, int)} tiles which are close on the map are
+     * close in key order, too.
+     *
+     * @param x the tile column
+     * @param y the tile row
+     * @param z the zoom level, at most <code>29</code>
+     * @return the zoom level followed by the position of the tile on the
+     * curve
+     */
+    public static long hilbert(final int x, final int y, final int z) {
+        final long n = 1L << z;
+        long tx = x & MASK, ty = y & MASK, d = 0;
+        for (long s = n >>> 1; s > 0; s >>>= 1) {
+            final long rx = (tx & s) > 0 ? 1 : 0;
+            final long ry = (ty & s) > 0 ? 1 : 0;
+            d += s * s * ((3 * rx) ^ ry);
+
+            // rotate the quadrant
+            if (ry == 0) {
+                if (rx == 1) {
+                    tx = n - 1 - tx;
+                    ty = n - 1 - ty;
+                }
+                final long t = tx;
+                tx = ty;
+                ty = t;
+            }
+        }
+        return ((long) z << (2 * BITS)) | d;
+    }
+
+    /**
+     * @param key a packed key
+     * @return the tile column
+     */
+    public static int x(final long key) {
+        return (int) ((key >>> BITS) & MASK);
+    }
+
+    /**
+     * @param key a packed key
+     * @return the tile row
+     */
+    public static int y(final long key) {
+        return (int) (key & MASK);
+    }
+
+    /**
+     * @param key a packed key
+     * @return the zoom level
+     */
+    public static int z(final long key) {
+        return (int) (key >>> (2 * BITS));
+    }
+
+}
@@ -0,0 +1,93 @@
+package de.slowpoke.mbtilesmap;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * SQLite settings applied to every connection of an archive which is opened
+ * read-only.
+ *
+ * @author Brian
+ */
+public class MBTilesTuning {
+
+    /**
+     * Tuning for large read-only basemaps: 256 MiB memory mapped, 8 MiB page
+     * cache per connection, temporary tables in memory and no writes.
+     */
+    public static final MBTilesTuning READ_ONLY = new MBTilesTuning(256L * 1024 * 1024, 8 * 1024, true, true);
+
+    /**
+     * Maximum number of bytes of the file to access through a memory map,
+     * <code>0</code> to read through read() calls. SQLite may cap it at
+     * compile time.
+     */
+    public final long mmapSize;
+
+    /**
+     * Size of the page cache per connection in KiB, <code>0</code> to keep
+     * the default.
+     */
+    public final int cacheSizeKiB;
+
+    /**
+     * Keep temporary tables and indexes in memory.
+     */
+    public final boolean tempStoreMemory;
+
+    /**
+     * Reject any statement which would modify the file.
+     */
+    public final boolean queryOnly;
+
+    /**
+     * @param mmapSize        see {@link #mmapSize}
+     * @param cacheSizeKiB    see {@link #cacheSizeKiB}
+     * @param tempStoreMemory see {@link #tempStoreMemory}
+     * @param queryOnly       see {@link #queryOnly}
+     */
+    public MBTilesTuning(long mmapSize, int cacheSizeKiB, boolean tempStoreMemory, boolean queryOnly) {
+        this.mmapSize = mmapSize;
+        this.cacheSizeKiB = cacheSizeKiB;
+        this.tempStoreMemory = tempStoreMemory;
+        this.queryOnly = queryOnly;
+    }
+
+    /**
+     * Apply the settings to a connection.
+     *
+     * @param database
+     */
+    void apply(SQLiteDatabase database) {
+        pragma(database, "mmap_size=" + this.mmapSize);
+        if (this.cacheSizeKiB > 0) {
+            // negative values are KiB instead of pages
+            pragma(database, "cache_size=-" + this.cacheSizeKiB);
+        }
+        if (this.tempStoreMemory) {
+            pragma(database, "temp_store=MEMORY");
+        }
+        if (this.queryOnly) {
+            pragma(database, "query_only=1");
+        }
+    }
+
+    /**
+     * Some pragmas return a row, so they have to be run as a query.
+     */
+    private static void pragma(SQLiteDatabase database, String pragma) {
+        final Cursor c = database.rawQuery("PRAGMA " + pragma, null);
+        try {
+            c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "mmap_size: " + mmapSize + " | cache_size: " + cacheSizeKiB + "KiB | temp_store memory: "
+                + tempStoreMemory + " | query_only: " + queryOnly;
+    }
+
+}
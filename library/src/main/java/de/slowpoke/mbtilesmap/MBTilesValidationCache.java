@@ -0,0 +1,319 @@
+package de.slowpoke.mbtilesmap;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import de.slowpoke.mbtilesmap.MBTilesMetadata.LayerType;
+import de.slowpoke.mbtilesmap.MBTilesMetadata.TileFormat;
+
+/**
+ * Remembers which archives have been validated, so they can be opened
+ * without validating them again. An archive is identified by its path, size
+ * and modification time, the size of its write-ahead log and a fingerprint
+ * of its schema. The validated {@link MBTilesMetadata} is kept with it.
+ * <p/>
+ * The cache is kept in a file, which is rewritten whenever an entry changes.
+ *
+ * @author Brian
+ */
+public class MBTilesValidationCache {
+
+    private final static int MAGIC = 0x4D425643;
+    private final static int FILE_VERSION = 1;
+
+    private final static String SELECT_SCHEMA = "SELECT group_concat(type || name || ifnull(sql, ''), ';') FROM "
+            + "(SELECT type, name, sql FROM sqlite_master ORDER BY name)";
+
+    /**
+     * A validated archive.
+     */
+    private static class Entry {
+        long[] stat;
+        long schema;
+        MBTilesMetadata metadata;
+    }
+
+    private final File file;
+    private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Create a cache which is kept in the given file. Existing entries are
+     * loaded from it.
+     *
+     * @param file
+     */
+    public MBTilesValidationCache(File file) {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * Get the validated metadata of an archive, if the archive has not changed
+     * since it has been validated. This only looks at the file system.
+     *
+     * @param dbpath the archive file
+     * @return the validated metadata or <code>null</code>
+     */
+    public synchronized MBTilesMetadata get(File dbpath) {
+        final Entry entry = this.entries.get(dbpath.getAbsolutePath());
+        if (entry == null || !equals(entry.stat, stat(dbpath))) {
+            return null;
+        }
+        return entry.metadata;
+    }
+
+    /**
+     * Check the schema of an opened archive against the cached fingerprint.
+     *
+     * @param dbpath   the archive file
+     * @param database the opened archive
+     * @return <code>true</code> if the schema has not changed
+     */
+    public boolean checkSchema(File dbpath, SQLiteDatabase database) {
+        final long schema = schema(database);
+        synchronized (this) {
+            final Entry entry = this.entries.get(dbpath.getAbsolutePath());
+            return entry != null && entry.schema == schema;
+        }
+    }
+
+    /**
+     * Remember a validated archive.
+     *
+     * @param dbpath   the archive file
+     * @param database the opened archive
+     * @param metadata the validated metadata
+     */
+    public void put(File dbpath, SQLiteDatabase database, MBTilesMetadata metadata) {
+        final Entry entry = new Entry();
+        entry.stat = stat(dbpath);
+        entry.schema = schema(database);
+        entry.metadata = metadata;
+
+        synchronized (this) {
+            this.entries.put(dbpath.getAbsolutePath(), entry);
+            save();
+        }
+    }
+
+    /**
+     * Update the entry of an archive after it has been closed, if there is
+     * one. Closing an archive changes its file even if no tile has been
+     * written, e.g. by checkpointing the write-ahead log; the archive counts
+     * as validated as long as its schema has not changed.
+     *
+     * @param dbpath   the archive file
+     * @param metadata the current metadata of the archive
+     */
+    public synchronized void refresh(File dbpath, MBTilesMetadata metadata) {
+        final Entry entry = this.entries.get(dbpath.getAbsolutePath());
+        if (entry == null) {
+            return;
+        }
+
+        entry.stat = stat(dbpath);
+        if (metadata != null) {
+            entry.metadata = metadata;
+        }
+        save();
+    }
+
+    /**
+     * Forget an archive, e.g. because it failed validation.
+     *
+     * @param dbpath the archive file
+     */
+    public synchronized void remove(File dbpath) {
+        if (this.entries.remove(dbpath.getAbsolutePath()) != null) {
+            save();
+        }
+    }
+
+    /**
+     * Forget all archives.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+        save();
+    }
+
+    private void load() {
+        if (!this.file.isFile()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+            if (in.readInt() != MAGIC || in.readInt() != FILE_VERSION) {
+                return;
+            }
+
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String path = in.readUTF();
+                final Entry entry = new Entry();
+                entry.stat = new long[]{in.readLong(), in.readLong(), in.readLong()};
+                entry.schema = in.readLong();
+                entry.metadata = readMetadata(in);
+                this.entries.put(path, entry);
+            }
+        } catch (IOException e) {
+            this.entries.clear();
+        } catch (RuntimeException e) {
+            this.entries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private void save() {
+        final File tmp = new File(this.file.getPath() + ".tmp");
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(FILE_VERSION);
+                out.writeInt(this.entries.size());
+                for (Map.Entry<String, Entry> e : this.entries.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    for (long value : e.getValue().stat) {
+                        out.writeLong(value);
+                    }
+                    out.writeLong(e.getValue().schema);
+                    writeMetadata(out, e.getValue().metadata);
+                }
+            } finally {
+                out.close();
+            }
+
+            if (!tmp.renameTo(this.file)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            // the cache is an optimization only, it will be rebuilt
+            tmp.delete();
+        }
+    }
+
+    private static void writeMetadata(DataOutputStream out, MBTilesMetadata m) throws IOException {
+        writeString(out, m.name);
+        writeString(out, m.description);
+        writeString(out, m.type == null ? null : m.type.toString());
+        writeString(out, m.version == null ? null : m.version.toString());
+        writeString(out, m.format == null ? null : m.format.toString());
+        writeString(out, m.bounds == null ? null : m.bounds.toString());
+
+        if (m.extra == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(m.extra.size());
+            for (Map.Entry<String, String> e : m.extra.entrySet()) {
+                writeString(out, e.getKey());
+                writeString(out, e.getValue());
+            }
+        }
+    }
+
+    private static MBTilesMetadata readMetadata(DataInputStream in) throws IOException {
+        final String name = readString(in);
+        final String description = readString(in);
+        final LayerType type = LayerType.fromString(readString(in));
+        final MBTilesVersion version = MBTilesVersion.fromString(readString(in));
+        final TileFormat format = TileFormat.fromString(readString(in));
+        final String bounds = readString(in);
+
+        LinkedHashMap<String, String> extra = null;
+        final int count = in.readInt();
+        if (count >= 0) {
+            extra = new LinkedHashMap<String, String>(count);
+            for (int i = 0; i < count; i++) {
+                extra.put(readString(in), readString(in));
+            }
+        }
+
+        return new MBTilesMetadata(name, description, type, version, format,
+                bounds == null ? null : new MBTilesBounds(bounds), extra);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Size and modification time of the archive and the size of its
+     * write-ahead log. An empty log is created when the archive is opened, so
+     * its modification time is left out.
+     */
+    private static long[] stat(File dbpath) {
+        final File wal = new File(dbpath.getPath() + "-wal");
+        return new long[]{dbpath.length(), dbpath.lastModified(), wal.length()};
+    }
+
+    private static boolean equals(long[] a, long[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a checksum over the definitions of all tables, views and
+     * indexes
+     */
+    private static long schema(SQLiteDatabase database) {
+        final SQLiteStatement statement = database.compileStatement(SELECT_SCHEMA);
+        final String sql;
+        try {
+            sql = statement.simpleQueryForString();
+        } finally {
+            statement.close();
+        }
+
+        final CRC32 crc = new CRC32();
+        if (sql != null) {
+            try {
+                crc.update(sql.getBytes("UTF-8"));
+            } catch (IOException ignore) {
+            }
+        }
+        return crc.getValue();
+    }
+
+}
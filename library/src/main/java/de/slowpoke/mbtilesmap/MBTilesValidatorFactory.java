@@ -213,16 +213,21 @@ public class MBTilesValidatorFactory {
 
             final TileFormat format = TileFormat.fromString(dumped.remove(KEY_FORMAT));
             if (format == null)
-                throw new InvalidMetadataException("No mandatory field 'format' or not in [ png, jpg ].");
+                throw new InvalidMetadataException("No mandatory field 'format' or not in [ png, jpg, webp, pbf ].");
 
             // optional
             MBTilesBounds bounds = null;
             if (dumped.containsKey(KEY_BOUNDS)) {
                 try {
-                    bounds = new MBTilesBounds(dumped.remove(KEY_BOUNDS));
+                    final String value = dumped.remove(KEY_BOUNDS);
+                    // the bounds would silently fall back to the whole world
+                    if (value == null || value.split(",").length != 4) {
+                        throw new NumberFormatException(value);
+                    }
+                    bounds = new MBTilesBounds(value);
 
-                    if (!(bounds.left >= -180 && bounds.left <= 0 && bounds.right <= 180 && bounds.right >= 0
-                            && bounds.bottom >= -85 && bounds.bottom <= 0 && bounds.top <= 85 && bounds.top >= 0)) {
+                    if (!(bounds.left >= -180 && bounds.left <= bounds.right && bounds.right <= 180
+                            && bounds.bottom >= -90 && bounds.bottom <= bounds.top && bounds.top <= 90)) {
                         bounds = null;
                     }
                 } catch (NumberFormatException e) {
@@ -0,0 +1,628 @@
+package de.slowpoke.mbtilesmap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a Mapbox vector tile straight from its protocol buffer encoding.
+ * Nothing is parsed up front: the layers are located when they are first
+ * asked for, a layer is scanned when its features are first asked for, and
+ * the tags and geometry of a feature are decoded only when they are read.
+ * Reading one layer of a tile doesn't pay for the others.
+ * <p/>
+ * As a consequence malformed data is only noticed when the broken part is
+ * read: the accessors throw an {@link IllegalStateException} then.
+ * <p/>
+ * Instances are not thread-safe.
+ *
+ * @author Brian
+ */
+public class MBTilesVectorTile {
+
+    public final static int GEOM_UNKNOWN = 0;
+    public final static int GEOM_POINT = 1;
+    public final static int GEOM_LINESTRING = 2;
+    public final static int GEOM_POLYGON = 3;
+
+    /**
+     * Default extent of a layer if the tile doesn't specify one.
+     */
+    public final static int DEFAULT_EXTENT = 4096;
+
+    private final static int WIRE_VARINT = 0;
+    private final static int WIRE_FIXED64 = 1;
+    private final static int WIRE_BYTES = 2;
+    private final static int WIRE_FIXED32 = 5;
+
+    private final static int CMD_MOVE_TO = 1;
+    private final static int CMD_LINE_TO = 2;
+    private final static int CMD_CLOSE_PATH = 7;
+
+    /**
+     * Receives the decoded geometry of a feature, in tile coordinates.
+     *
+     * @author Brian
+     */
+    public static interface GeometryHandler {
+
+        void moveTo(int x, int y);
+
+        void lineTo(int x, int y);
+
+        void closePath();
+    }
+
+    /**
+     * A layer of a vector tile.
+     *
+     * @author Brian
+     */
+    public class Layer {
+
+        private final int offset;
+        private final int end;
+
+        private String name;
+        private boolean scanned;
+        private int version = 1;
+        private int extent = DEFAULT_EXTENT;
+        // offsets and ends of the features, keys and values
+        private int[] features = new int[0];
+        private int featureCount;
+        private int[] keys = new int[0];
+        private int keyCount;
+        private int[] values = new int[0];
+        private int valueCount;
+        private String[] keyCache;
+        private Object[] valueCache;
+
+        Layer(int offset, int end) {
+            this.offset = offset;
+            this.end = end;
+        }
+
+        /**
+         * @return the name of the layer. Only the header of the layer is read.
+         */
+        public String getName() {
+            if (this.name == null) {
+                final Reader reader = new Reader(MBTilesVectorTile.this.data, this.offset, this.end);
+                while (reader.next()) {
+                    if (reader.field == 1 && reader.wire == WIRE_BYTES) {
+                        this.name = reader.string();
+                        break;
+                    }
+                    reader.skip();
+                }
+            }
+            return this.name;
+        }
+
+        public int getVersion() {
+            scan();
+            return this.version;
+        }
+
+        /**
+         * @return the size of the tile in the coordinates of the geometry
+         */
+        public int getExtent() {
+            scan();
+            return this.extent;
+        }
+
+        public int getFeatureCount() {
+            scan();
+            return this.featureCount;
+        }
+
+        /**
+         * @param i
+         * @return the feature, which decodes its tags and geometry when they
+         * are read
+         */
+        public Feature getFeature(int i) {
+            scan();
+            if (i < 0 || i >= this.featureCount) {
+                throw new IndexOutOfBoundsException("Feature " + i + " of " + this.featureCount);
+            }
+            return new Feature(this, this.features[i * 2], this.features[i * 2 + 1]);
+        }
+
+        /**
+         * Find all fields of the layer, skipping over their contents.
+         */
+        private void scan() {
+            if (this.scanned) {
+                return;
+            }
+
+            final Reader reader = new Reader(MBTilesVectorTile.this.data, this.offset, this.end);
+            while (reader.next()) {
+                if (reader.field == 1 && reader.wire == WIRE_BYTES) {
+                    this.name = reader.string();
+                } else if (reader.field == 2 && reader.wire == WIRE_BYTES) {
+                    this.features = add(this.features, this.featureCount++, reader);
+                } else if (reader.field == 3 && reader.wire == WIRE_BYTES) {
+                    this.keys = add(this.keys, this.keyCount++, reader);
+                } else if (reader.field == 4 && reader.wire == WIRE_BYTES) {
+                    this.values = add(this.values, this.valueCount++, reader);
+                } else if (reader.field == 5 && reader.wire == WIRE_VARINT) {
+                    this.extent = (int) reader.varint();
+                } else if (reader.field == 15 && reader.wire == WIRE_VARINT) {
+                    this.version = (int) reader.varint();
+                } else {
+                    reader.skip();
+                }
+            }
+
+            this.keyCache = new String[this.keyCount];
+            this.valueCache = new Object[this.valueCount];
+            this.scanned = true;
+        }
+
+        String getKey(int i) {
+            scan();
+            if (this.keyCache[i] == null) {
+                this.keyCache[i] = decodeString(this.keys[i * 2], this.keys[i * 2 + 1]);
+            }
+            return this.keyCache[i];
+        }
+
+        Object getValue(int i) {
+            scan();
+            if (this.valueCache[i] == null) {
+                this.valueCache[i] = decodeValue(this.values[i * 2], this.values[i * 2 + 1]);
+            }
+            return this.valueCache[i];
+        }
+
+        @Override
+        public String toString() {
+            return "Layer " + getName();
+        }
+    }
+
+    /**
+     * A feature of a layer.
+     *
+     * @author Brian
+     */
+    public class Feature {
+
+        private final Layer layer;
+
+        private long id;
+        private int type = GEOM_UNKNOWN;
+        private int tagsOffset, tagsEnd;
+        private int geometryOffset, geometryEnd;
+        private int[] tags;
+
+        Feature(Layer layer, int offset, int end) {
+            this.layer = layer;
+
+            final Reader reader = new Reader(MBTilesVectorTile.this.data, offset, end);
+            while (reader.next()) {
+                if (reader.field == 1 && reader.wire == WIRE_VARINT) {
+                    this.id = reader.varint();
+                } else if (reader.field == 2 && reader.wire == WIRE_BYTES) {
+                    this.tagsEnd = reader.bytes();
+                    this.tagsOffset = reader.pos;
+                    reader.pos = this.tagsEnd;
+                } else if (reader.field == 3 && reader.wire == WIRE_VARINT) {
+                    this.type = (int) reader.varint();
+                } else if (reader.field == 4 && reader.wire == WIRE_BYTES) {
+                    this.geometryEnd = reader.bytes();
+                    this.geometryOffset = reader.pos;
+                    reader.pos = this.geometryEnd;
+                } else {
+                    reader.skip();
+                }
+            }
+        }
+
+        public long getId() {
+            return this.id;
+        }
+
+        /**
+         * @return one of {@link #GEOM_POINT}, {@link #GEOM_LINESTRING},
+         * {@link #GEOM_POLYGON} or {@link #GEOM_UNKNOWN}
+         */
+        public int getType() {
+            return this.type;
+        }
+
+        public Layer getLayer() {
+            return this.layer;
+        }
+
+        public int getTagCount() {
+            return tags().length / 2;
+        }
+
+        public String getKey(int i) {
+            return this.layer.getKey(tags()[i * 2]);
+        }
+
+        /**
+         * @param i
+         * @return a {@link String}, {@link Float}, {@link Double},
+         * {@link Long} or {@link Boolean}
+         */
+        public Object getValue(int i) {
+            return this.layer.getValue(tags()[i * 2 + 1]);
+        }
+
+        /**
+         * @param key
+         * @return the value of a tag or <code>null</code> if the feature has
+         * no tag with that key
+         */
+        public Object getValue(String key) {
+            final int[] tags = tags();
+            for (int i = 0; i < tags.length; i += 2) {
+                if (key.equals(this.layer.getKey(tags[i]))) {
+                    return this.layer.getValue(tags[i + 1]);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Decode the geometry and hand it to the handler command by command.
+         *
+         * @param handler
+         */
+        public void decodeGeometry(GeometryHandler handler) {
+            final Reader reader = new Reader(MBTilesVectorTile.this.data, this.geometryOffset, this.geometryEnd);
+            int x = 0, y = 0;
+            while (reader.pos < reader.end) {
+                final int command = (int) reader.varint();
+                final int id = command & 0x7;
+                final int count = command >>> 3;
+
+                if (id == CMD_CLOSE_PATH) {
+                    for (int i = 0; i < count; i++) {
+                        handler.closePath();
+                    }
+                } else if (id == CMD_MOVE_TO || id == CMD_LINE_TO) {
+                    for (int i = 0; i < count; i++) {
+                        x += zigzag(reader.varint());
+                        y += zigzag(reader.varint());
+                        if (id == CMD_MOVE_TO) {
+                            handler.moveTo(x, y);
+                        } else {
+                            handler.lineTo(x, y);
+                        }
+                    }
+                } else {
+                    throw new IllegalStateException("Unknown geometry command " + id);
+                }
+            }
+        }
+
+        private int[] tags() {
+            if (this.tags == null) {
+                this.tags = decodePacked(this.tagsOffset, this.tagsEnd);
+            }
+            return this.tags;
+        }
+    }
+
+    private final byte[] data;
+
+    private int[] layers;
+    private int layerCount = -1;
+    private Layer[] layerCache;
+
+    /**
+     * Read a tile. Gzip compressed tiles are inflated first.
+     *
+     * @param data the tile data as stored in the archive
+     * @throws IOException if the data can't be inflated
+     */
+    public MBTilesVectorTile(byte[] data) throws IOException {
+        this.data = isGzipped(data) ? gunzip(data) : data;
+    }
+
+    /**
+     * @param data
+     * @return <code>true</code> if the data starts with the gzip magic number
+     */
+    public static boolean isGzipped(byte[] data) {
+        return data != null && data.length >= 2 && (data[0] & 0xFF) == 0x1F && (data[1] & 0xFF) == 0x8B;
+    }
+
+    /**
+     * Inflate gzip compressed data.
+     *
+     * @param data
+     * @return the inflated data
+     * @throws IOException
+     */
+    public static byte[] gunzip(byte[] data) throws IOException {
+        final GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the number of layers
+     * @throws IllegalStateException if the layers are not framed correctly
+     */
+    public int getLayerCount() {
+        locateLayers();
+        return this.layerCount;
+    }
+
+    /**
+     * @param i
+     * @return the layer, the same instance for every call
+     */
+    public Layer getLayer(int i) {
+        locateLayers();
+        if (i < 0 || i >= this.layerCount) {
+            throw new IndexOutOfBoundsException("Layer " + i + " of " + this.layerCount);
+        }
+        if (this.layerCache[i] == null) {
+            this.layerCache[i] = new Layer(this.layers[i * 2], this.layers[i * 2 + 1]);
+        }
+        return this.layerCache[i];
+    }
+
+    /**
+     * @param name
+     * @return the layer with that name or <code>null</code>. Only the headers
+     * of the layers in front of it are read.
+     */
+    public Layer getLayer(String name) {
+        locateLayers();
+        for (int i = 0; i < this.layerCount; i++) {
+            final Layer layer = getLayer(i);
+            if (name.equals(layer.getName())) {
+                return layer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the names of all layers
+     */
+    public String[] getLayerNames() {
+        final String[] names = new String[getLayerCount()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = getLayer(i).getName();
+        }
+        return names;
+    }
+
+    /**
+     * @return the uncompressed tile data
+     */
+    public byte[] getData() {
+        return this.data;
+    }
+
+    private void locateLayers() {
+        if (this.layerCount >= 0) {
+            return;
+        }
+
+        int count = 0;
+        int[] layers = new int[8];
+        final Reader reader = new Reader(this.data, 0, this.data.length);
+        while (reader.next()) {
+            if (reader.field == 3 && reader.wire == WIRE_BYTES) {
+                layers = add(layers, count++, reader);
+            } else {
+                reader.skip();
+            }
+        }
+
+        this.layers = layers;
+        this.layerCache = new Layer[count];
+        this.layerCount = count;
+    }
+
+    /**
+     * Remember the offset and end of the contents of a length-delimited field
+     * and skip it.
+     *
+     * @param ranges the offsets and ends found so far
+     * @param index  the index of the field
+     * @param reader positioned at the length of the field
+     * @return the ranges, grown if necessary
+     */
+    private static int[] add(int[] ranges, int index, Reader reader) {
+        final int end = reader.bytes();
+        if (ranges.length < (index + 1) * 2) {
+            ranges = Arrays.copyOf(ranges, Math.max(8, ranges.length * 2));
+        }
+        ranges[index * 2] = reader.pos;
+        ranges[index * 2 + 1] = end;
+        reader.pos = end;
+        return ranges;
+    }
+
+    private String decodeString(int offset, int end) {
+        final Reader reader = new Reader(this.data, offset, end);
+        return reader.string(end - offset);
+    }
+
+    /**
+     * Decode a Value message.
+     */
+    private Object decodeValue(int offset, int end) {
+        final Reader reader = new Reader(this.data, offset, end);
+        while (reader.next()) {
+            switch (reader.field) {
+                case 1:
+                    return reader.string();
+                case 2:
+                    return Float.intBitsToFloat(reader.fixed32());
+                case 3:
+                    return Double.longBitsToDouble(reader.fixed64());
+                case 4:
+                case 5:
+                    return reader.varint();
+                case 6:
+                    return zigzag(reader.varint());
+                case 7:
+                    return reader.varint() != 0;
+                default:
+                    reader.skip();
+            }
+        }
+        return null;
+    }
+
+    private int[] decodePacked(int offset, int end) {
+        final Reader reader = new Reader(this.data, offset, end);
+        int[] values = new int[Math.max(0, end - offset)];
+        int count = 0;
+        while (reader.pos < reader.end) {
+            values[count++] = (int) reader.varint();
+        }
+        return Arrays.copyOf(values, count);
+    }
+
+    private static long zigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    /**
+     * Walks the fields of one protocol buffer message.
+     */
+    private static class Reader {
+        final byte[] buf;
+        final int end;
+        int pos;
+        int field;
+        int wire;
+
+        Reader(byte[] buf, int offset, int end) {
+            this.buf = buf;
+            this.pos = offset;
+            this.end = end;
+        }
+
+        /**
+         * Read the next field key.
+         *
+         * @return <code>false</code> at the end of the message
+         */
+        boolean next() {
+            if (this.pos >= this.end) {
+                return false;
+            }
+            final long key = varint();
+            this.field = (int) (key >>> 3);
+            this.wire = (int) (key & 0x7);
+            return true;
+        }
+
+        long varint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (this.pos >= this.end) {
+                    throw new IllegalStateException("Truncated varint");
+                }
+                final byte b = this.buf[this.pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalStateException("Malformed varint");
+        }
+
+        int fixed32() {
+            check(4);
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value |= (this.buf[this.pos++] & 0xFF) << (i * 8);
+            }
+            return value;
+        }
+
+        long fixed64() {
+            check(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value |= (long) (this.buf[this.pos++] & 0xFF) << (i * 8);
+            }
+            return value;
+        }
+
+        /**
+         * Read the length of a length-delimited field, leaving the position at
+         * its contents.
+         *
+         * @return the end of the contents
+         */
+        int bytes() {
+            final int length = (int) varint();
+            check(length);
+            return this.pos + length;
+        }
+
+        String string() {
+            final int end = bytes();
+            return string(end - this.pos);
+        }
+
+        String string(int length) {
+            check(length);
+            try {
+                final String s = new String(this.buf, this.pos, length, "UTF-8");
+                this.pos += length;
+                return s;
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void skip() {
+            switch (this.wire) {
+                case WIRE_VARINT:
+                    varint();
+                    break;
+                case WIRE_FIXED64:
+                    check(8);
+                    this.pos += 8;
+                    break;
+                case WIRE_BYTES:
+                    this.pos = bytes();
+                    break;
+                case WIRE_FIXED32:
+                    check(4);
+                    this.pos += 4;
+                    break;
+                default:
+                    throw new IllegalStateException("Unsupported wire type " + this.wire);
+            }
+        }
+
+        private void check(int length) {
+            if (length < 0 || this.pos + length > this.end) {
+                throw new IllegalStateException("Truncated field");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,223 @@
+package de.slowpoke.mbtilesmap;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+/**
+ * A session to write many tiles to {@link MBTiles}. All tiles are written
+ * through one compiled statement inside a transaction, which is committed
+ * after every <code>batchSize</code> tiles and when the writer is closed.
+ * Existing tiles will be overwritten.
+ * <p/>
+ * A transaction is only begun with the first tile of a batch, so an idle
+ * writer doesn't hold the database. Without write-ahead logging that
+ * transaction blocks every reader of the connection until it is committed.
+ * <p/>
+ * SQLite transactions are bound to a thread, so a writer must be used and
+ * closed on the thread which opened it.
+ *
+ * @author Brian
+ */
+public class MBTilesWriter {
+
+    private final MBTiles tiles;
+    private final SQLiteDatabase database;
+    private final MBTilesTileInsert insert;
+    private final SQLiteStatement tileLength;
+    private final int batchSize;
+    private final long startTime;
+
+    private int pending;
+    private boolean inTransaction;
+    private long tileCount;
+    private long byteCount;
+    private boolean closed;
+
+    /**
+     * Open a new writer.
+     *
+     * @param tiles
+     * @param database  the writable database of the tiles
+     * @param batchSize the number of tiles per transaction
+     * @see MBTiles#openWriter(int)
+     */
+    MBTilesWriter(MBTiles tiles, SQLiteDatabase database, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+
+        this.tiles = tiles;
+        this.database = database;
+        this.batchSize = batchSize;
+        this.insert = new MBTilesTileInsert(database, tiles.getLayout());
+        this.tileLength = tiles.compileTileLength();
+        this.startTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Set a tile at the specified coordinates. The tile is compressed with the
+     * format of the {@link MBTilesMetadata}.
+     *
+     * @param tile
+     * @param x
+     * @param y
+     * @param z
+     * @return <code>true</code> if the tile data has been inserted to the
+     * database, <code>false</code> otherwise
+     */
+    public boolean setTile(final Bitmap tile, final int x, final int y, final int z) {
+        final byte[] data;
+        try {
+            data = MBTiles.compress(tile, this.tiles.getMetadata().format, this.tiles.getQuality());
+        } catch (NullPointerException ignore) {
+            return false;
+        }
+
+        if (data == null) {
+            return false;
+        }
+
+        return setTileBytes(data, x, y, z);
+    }
+
+    /**
+     * Set the data of a tile as it is, without compressing it. Commits if the
+     * batch is full.
+     *
+     * @param data
+     * @param x
+     * @param y
+     * @param z
+     * @return <code>true</code> if the tile data has been inserted to the
+     * database, <code>false</code> otherwise
+     */
+    public boolean setTileBytes(final byte[] data, final int x, final int y, final int z) {
+        if (this.closed) {
+            throw new IllegalStateException("Writer has been closed");
+        }
+
+        if (!this.inTransaction) {
+            this.database.beginTransactionNonExclusive();
+            this.inTransaction = true;
+        }
+
+        final int replaced = this.tiles.getReplacedLength(this.tileLength, x, y, z);
+        if (!this.insert.insert(data, x, y, z)) {
+            return false;
+        }
+
+        this.tiles.tileWritten(x, y, z, data.length, replaced);
+        this.tileCount++;
+        this.byteCount += data.length;
+
+        if (++this.pending >= this.batchSize) {
+            commit();
+        }
+
+        return true;
+    }
+
+    /**
+     * Commit all tiles written so far. The next tile begins a new
+     * transaction.
+     */
+    public void commit() {
+        if (this.closed) {
+            throw new IllegalStateException("Writer has been closed");
+        }
+        if (!this.inTransaction) {
+            return;
+        }
+
+        this.inTransaction = false;
+        this.pending = 0;
+        this.database.setTransactionSuccessful();
+        this.database.endTransaction();
+    }
+
+    /**
+     * Commit the remaining tiles and release the writer.
+     */
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+
+        this.closed = true;
+        try {
+            if (this.inTransaction) {
+                this.inTransaction = false;
+                this.database.setTransactionSuccessful();
+                this.database.endTransaction();
+            }
+        } finally {
+            this.insert.close();
+            this.tileLength.close();
+        }
+    }
+
+    /**
+     * Discard the tiles of the current batch and release the writer. Tiles of
+     * batches which have already been committed are kept.
+     */
+    public void abort() {
+        if (this.closed) {
+            return;
+        }
+
+        this.closed = true;
+        try {
+            if (this.inTransaction) {
+                this.inTransaction = false;
+                this.database.endTransaction();
+            }
+        } finally {
+            this.insert.close();
+            this.tileLength.close();
+        }
+    }
+
+    /**
+     * @return the number of tiles written by this writer
+     */
+    public long getTileCount() {
+        return this.tileCount;
+    }
+
+    /**
+     * @return the number of tiles written since the last commit
+     */
+    public int getPendingCount() {
+        return this.pending;
+    }
+
+    /**
+     * @return the number of compressed bytes written by this writer
+     */
+    public long getByteCount() {
+        return this.byteCount;
+    }
+
+    /**
+     * @return the milliseconds since the writer has been opened
+     */
+    public long getElapsedMillis() {
+        return SystemClock.elapsedRealtime() - this.startTime;
+    }
+
+    /**
+     * @return the average number of tiles written per second
+     */
+    public double getTilesPerSecond() {
+        final long elapsed = getElapsedMillis();
+        return elapsed > 0 ? this.tileCount * 1000d / elapsed : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "Tiles: " + this.tileCount + " | Bytes: " + this.byteCount + " | Tiles/s: " + getTilesPerSecond();
+    }
+
+}